@@ -10,19 +10,22 @@ import java.util.InputMismatchException;
 import java.util.Map;
 import java.util.Objects;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.zip.Deflater;
 import java.util.zip.Inflater;
 
 import ctu.core.interfaces.Compression;
 import ctu.core.logger.Log;
+import ctu.core.packets.PacketPing;
 import ctu.core.server.Server;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 
 /**
  * @author     Fentus
@@ -31,8 +34,9 @@ import io.netty.channel.SimpleChannelInboundHandler;
  * @param  <T>
  */
 public class Connection<T> extends SimpleChannelInboundHandler<ByteBuf> {
-	private long connectionID = -1;
-	private long userID = -1;
+	// Set and read from different threads (login handlers, listeners, the event loop).
+	private volatile long connectionID = -1;
+	private volatile long userID = -1;
 	private final T connectionObject;
 	private boolean inactive = false;
 
@@ -49,6 +53,45 @@ public class Connection<T> extends SimpleChannelInboundHandler<ByteBuf> {
 	// It is used to send packets to the remote address.
 	private ChannelHandlerContext ctx;
 
+	// Set once the server has handed out the UDP key for this connection.
+	private volatile UdpSession udpSession;
+
+	// Hands listeners LazyPacket handles instead of decoded packets, see setLazyDecoding.
+	private boolean lazyDecoding = false;
+
+	// Frames sent from threads other than the channel's event loop, written in one pass by a single drain task.
+	private final ConcurrentLinkedQueue<ByteBuf> outbound = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean drainScheduled = new AtomicBoolean();
+
+	// While set, every frame is queued, e.g. while the server moves the channel to another event loop.
+	// Declared before drainTask, which reads it.
+	private volatile boolean writesHeld = false;
+
+	private final Runnable drainTask = () -> {
+		// Cleared before draining, so a frame queued during the drain schedules another one.
+		drainScheduled.set(false);
+
+		if (writesHeld) {
+			// releaseWrites() drains once the channel is back on an event loop.
+			return;
+		}
+
+		if (!ctx.executor().inEventLoop()) {
+			// Scheduled on the loop the channel has since left.
+			scheduleDrain();
+			return;
+		}
+
+		writePending();
+		ctx.flush();
+	};
+
+	private static final ChannelFutureListener WRITE_FAILURE_LOGGER = future -> {
+		if (!future.isSuccess()) {
+			Log.debug("TCP send failed: " + future.cause().getMessage());
+		}
+	};
+
 	/**
 	 * Constructs a new Connection with the given non-null connection object.
 	 * 
@@ -108,6 +151,37 @@ public class Connection<T> extends SimpleChannelInboundHandler<ByteBuf> {
 		return packet;
 	}
 
+	/**
+	 * Converts received bytes into a packet, honoring {@link #setLazyDecoding(boolean)}. With lazy decoding enabled a {@link LazyPacket} carrying the type ID and the frame is returned and unmarshalling is deferred until a listener first asks for the packet fields. PacketPing is always decoded eagerly since the connection handlers act on it directly.
+	 * 
+	 * @param  bytes
+	 * @return
+	 */
+	public Packet readPacket(byte[] bytes) {
+		if (!lazyDecoding) {
+			return bytesToPacket(bytes);
+		}
+
+		if (bytes == null || bytes.length < 3) {
+			return null;
+		}
+
+		int id = (bytes[2] & 0xFF);
+
+		final Class<?> clazz = clazzesIntegerClazz.get(id);
+
+		if (clazz == null) {
+			Log.debug("Index out of range.");
+			return null;
+		}
+
+		if (clazz == PacketPing.class) {
+			return bytesToPacket(bytes);
+		}
+
+		return new LazyPacket(this, id, clazz, bytes);
+	}
+
 	/**
 	 * This field is an instance of the Compression interface that provides methods for compressing and decompressing data. It is used to compress and decompress packet data before and after transmission.
 	 */
@@ -151,14 +225,16 @@ public class Connection<T> extends SimpleChannelInboundHandler<ByteBuf> {
 		}
 	};
 
+	/** Largest frame on the wire: the 2-byte length of the compressed data, the packet key and the data itself. */
+	public static final int MAX_FRAME_SIZE = 0xFFFF + 3;
+
 	/**
-	 * packetToBytes takes a Compression object as an argument and returns a compressed version of the marshalled packet data. The method compresses the packet data using the compress method of the Compression object, and then checks whether the compressed data exceeds the MTU size limit of 1500 bytes. If the compressed data is larger than the MTU size, the method prints a warning message to the console.
-	 *
-	 * Note that the default buffer size for the byte array used in the getData method is 4096 bytes. Subclasses may override this value if necessary.
-	 * 
-	 * @param  compression
-	 * @return
+	 * Splits a plain byte stream into frames. Needed in front of the connection handler on links without TLS, where TCP may split or merge frames.
 	 */
+	public static LengthFieldBasedFrameDecoder newFrameDecoder() {
+		return new LengthFieldBasedFrameDecoder(MAX_FRAME_SIZE, 0, 2, 1, 0);
+	}
+
 	/** Default marshal buffer size used when callers don't explicitly configure one. */
 	public static final int DEFAULT_MARSHAL_BUFFER_SIZE = 4096;
 
@@ -178,6 +254,14 @@ public class Connection<T> extends SimpleChannelInboundHandler<ByteBuf> {
 		return marshalBufferSize;
 	}
 
+	/**
+	 * packetToBytes takes a Compression object as an argument and returns a compressed version of the marshalled packet data. The method compresses the packet data using the compress method of the Compression object, and then checks whether the compressed data exceeds the MTU size limit of 1500 bytes. If the compressed data is larger than the MTU size, the method prints a warning message to the console.
+	 *
+	 * Note that the default buffer size for the byte array used in the getData method is 4096 bytes. Subclasses may override this value if necessary.
+	 * 
+	 * @param  compression
+	 * @return
+	 */
 	public byte[] packetToBytes(Compression compression, Packet packet) {
 		// Sized via {@link #setMarshalBufferSize}; configured per-Client/Server at construction time.
 		byte[] buf = new byte[marshalBufferSize];
@@ -202,6 +286,8 @@ public class Connection<T> extends SimpleChannelInboundHandler<ByteBuf> {
 
 	/**
 	 * This method sends a TCP packet containing the given Packet object. It creates a byte array that contains a header and the packet data, where the header is the same as in the sendUDP() method. The method then sends the data using the Netty channel.
+	 *
+	 * A {@link LazyPacket} received from another connection is forwarded from its original frame without being decoded or re-encoded.
 	 * 
 	 * @param  packet
 	 * @return
@@ -211,13 +297,48 @@ public class Connection<T> extends SimpleChannelInboundHandler<ByteBuf> {
 			return;
 		}
 
+		byte[] bytes = encodeFrame(packet);
+
+		if (bytes == null) {
+			return;
+		}
+
+		sendFrame(Unpooled.wrappedBuffer(bytes), getPacketName(packet));
+	}
+
+	/**
+	 * Encodes a packet into a complete wire frame (2 byte length, 1 byte packet key, compressed data). Returns null if the packet is not registered or could not be serialized.
+	 *
+	 * A {@link LazyPacket} whose type is registered under the same key on this connection is returned as its original frame.
+	 * 
+	 * @param  packet
+	 * @return
+	 */
+	public byte[] encodeFrame(Packet packet) {
+		if (packet instanceof LazyPacket) {
+			LazyPacket lazyPacket = (LazyPacket) packet;
+
+			byte[] frame = lazyPacket.getFrame();
+
+			if (frame != null && clazzesIntegerClazz.get(lazyPacket.getTypeId()) == lazyPacket.getPacketClass()) {
+				return frame;
+			}
+
+			// Registered under a different key here, or unmarshalled into: encode the decoded packet.
+			packet = lazyPacket.get();
+
+			if (packet == null) {
+				return null;
+			}
+		}
+
 		byte[] header = new byte[3];
 
 		Integer key = clazzesStringInteger.get(packet.getClass().getSimpleName());
 
 		if (key == null) {
 			Log.debug("Cannot send unregistered packet: " + packet.getClass().getSimpleName());
-			return;
+			return null;
 		}
 
 		System.arraycopy(new byte[] { (byte) (int) key }, 0, header, 2, 1);
@@ -226,7 +347,7 @@ public class Connection<T> extends SimpleChannelInboundHandler<ByteBuf> {
 
 		if (data == null) {
 			Log.debug("Failed to serialize packet: " + packet.getClass().getSimpleName());
-			return;
+			return null;
 		}
 
 		System.arraycopy(new byte[] { (byte) (data.length >>> 8), (byte) data.length }, 0, header, 0, 2);
@@ -236,43 +357,196 @@ public class Connection<T> extends SimpleChannelInboundHandler<ByteBuf> {
 		System.arraycopy(header, 0, bytes, 0, header.length);
 		System.arraycopy(data, 0, bytes, header.length, data.length);
 
-		String packetName = packet.getClass().getSimpleName();
-		int size = bytes.length;
+		return bytes;
+	}
+
+	/**
+	 * Writes an already encoded frame to the channel and flushes it. Ownership of one reference of the frame is passed to this method, it is released once written (or immediately if the connection can't send).
+	 * 
+	 * @param frame      a complete frame as produced by {@link #encodeFrame(Packet)}
+	 * @param packetName name used for bandwidth tracking and logging
+	 */
+	public void sendFrame(ByteBuf frame, String packetName) {
+		writeFrame(frame, packetName, true);
+	}
+
+	/**
+	 * Writes an already encoded frame without flushing it, the caller flushes with {@link #flush()} once its writes are done. Meant to be called on the channel's event loop, ownership of one reference of the frame is passed as with {@link #sendFrame(ByteBuf, String)}.
+	 * 
+	 * @param frame      a complete frame as produced by {@link #encodeFrame(Packet)}
+	 * @param packetName name used for bandwidth tracking and logging
+	 */
+	public void writeFrame(ByteBuf frame, String packetName) {
+		writeFrame(frame, packetName, false);
+	}
+
+	private void writeFrame(ByteBuf frame, String packetName, boolean flush) {
+		if (isInactive()) {
+			frame.release();
+			return;
+		}
 
+		int size = frame.readableBytes();
+
+		trackSent(packetName, size);
+
+		if (ctx == null) {
+			frame.release();
+			Log.debug("TCP send failed (not connected) - Packet: " + packetName + ", Size: " + size + " bytes.");
+		} else if (writesHeld || !ctx.executor().inEventLoop()) {
+			// Off the event loop: queue the frame and let a single drain task write everything pending.
+			outbound.offer(frame);
+
+			FlushBatch batch = FlushBatch.current();
+
+			if (batch != null) {
+				batch.add(this);
+			} else if (flush) {
+				scheduleDrain();
+			}
+		} else {
+			// Frames queued by other threads go first to keep the send order.
+			writePending();
+
+			// Inside a flush batch (e.g. a shard tick) the flush is done once when the batch ends.
+			FlushBatch batch = FlushBatch.current();
+
+			if (!flush) {
+				ctx.write(frame).addListener(WRITE_FAILURE_LOGGER);
+			} else if (batch != null) {
+				ctx.write(frame).addListener(WRITE_FAILURE_LOGGER);
+				batch.add(this);
+			} else {
+				ctx.writeAndFlush(frame).addListener(WRITE_FAILURE_LOGGER);
+			}
+		}
+
+		Log.trace("Sent TCP packet: " + packetName + ", Size: " + size + " bytes.");
+	}
+
+	/**
+	 * Sends a packet over the connection's UDP session: unreliable, unordered delivery where the receiver drops anything older than what it already has, meant for real-time state that is superseded by the next update.
+	 *
+	 * Falls back to {@link #sendTCP(Packet)} while no UDP session is bound yet, when UDP is not enabled, or when the frame is larger than {@link UdpSession#MAX_FRAME_SIZE}.
+	 * 
+	 * @param packet
+	 */
+	public void sendUDP(Packet packet) {
+		if (isInactive()) {
+			return;
+		}
+
+		UdpSession session = udpSession;
+
+		if (session == null || !session.isBound()) {
+			sendTCP(packet);
+			return;
+		}
+
+		byte[] bytes = encodeFrame(packet);
+
+		if (bytes == null) {
+			return;
+		}
+
+		String packetName = getPacketName(packet);
+
+		if (bytes.length > UdpSession.MAX_FRAME_SIZE || !session.send(bytes)) {
+			sendFrame(Unpooled.wrappedBuffer(bytes), packetName);
+			return;
+		}
+
+		trackSent(packetName, bytes.length);
+
+		Log.trace("Sent UDP packet: " + packetName + ", Size: " + bytes.length + " bytes.");
+	}
+
+	private void trackSent(String packetName, int size) {
 		// Track bandwidth per packet type
 		packetBytesSent.computeIfAbsent(packetName, _ -> new long[2]);
 		long[] stats = packetBytesSent.get(packetName);
 		stats[0]++;
 		stats[1] += size;
 		totalBytesSent.addAndGet(size);
+	}
 
-		if (ctx == null) {
-			Log.debug("TCP send failed (not connected) - Packet: " + packetName + ", Size: " + size + " bytes.");
+	/**
+	 * Flushes any writes pending on the channel.
+	 */
+	public void flush() {
+		if (ctx == null || writesHeld) {
+			return;
+		}
+
+		if (ctx.executor().inEventLoop()) {
+			writePending();
+			ctx.flush();
 		} else {
-			ChannelFuture future = ctx.writeAndFlush(Unpooled.copiedBuffer(bytes));
-
-			future.addListener(new ChannelFutureListener() {
-				@Override
-				public void operationComplete(ChannelFuture future) {
-					if (!future.isSuccess()) {
-						Log.debug("TCP send failed: " + future.cause().getMessage() + " - Packet: " + packetName + ", Size: " + size + " bytes.");
-					}
-				}
-			});
+			scheduleDrain();
 		}
+	}
 
-		Log.trace("Sent TCP packet: " + packetName + ", Size: " + size + " bytes.");
+	/**
+	 * Queues every frame instead of writing it until {@link #releaseWrites()}. Used while the channel has no event loop.
+	 */
+	public void holdWrites() {
+		writesHeld = true;
+	}
+
+	/**
+	 * Writes and flushes the frames queued since {@link #holdWrites()} on the channel's current event loop.
+	 */
+	public void releaseWrites() {
+		writesHeld = false;
+		flush();
+	}
+
+	private void scheduleDrain() {
+		if (writesHeld) {
+			return;
+		}
+
+		if (drainScheduled.compareAndSet(false, true)) {
+			ctx.executor().execute(drainTask);
+		}
+	}
+
+	/**
+	 * Writes every queued frame without flushing. Must run on the event loop.
+	 */
+	private void writePending() {
+		ByteBuf frame;
+
+		while ((frame = outbound.poll()) != null) {
+			ctx.write(frame).addListener(WRITE_FAILURE_LOGGER);
+		}
+	}
+
+	/**
+	 * Returns the simple class name of a packet, resolving {@link LazyPacket} handles to the class they carry.
+	 */
+	public static String getPacketName(Packet packet) {
+		if (packet instanceof LazyPacket) {
+			return ((LazyPacket) packet).getPacketClass().getSimpleName();
+		}
+
+		return packet.getClass().getSimpleName();
 	}
 
 	/**
 	 * This method is used to set the list of acceptable classes that the Connection class can check against. It takes an ArrayList of Class<?> as a parameter and assigns it to the "clazzes" member variable of the Connection class.
 	 * 
-	 * @param clazzes
+	 * @param  clazzes
+	 * @throws IllegalArgumentException if a key does not fit the one byte frame header or is {@link UdpSession#CONTROL_KEY}
 	 */
 	public void setClazzes(HashMap<Integer, Class<?>> clazzes) {
 		clazzes.forEach((key, value) -> {
 			String name = value.getSimpleName();
 
+			if (key < 0 || key >= UdpSession.CONTROL_KEY) {
+				throw new IllegalArgumentException("Packet " + name + " uses key " + key + ", keys must be 0-" + (UdpSession.CONTROL_KEY - 1) + " and " + UdpSession.CONTROL_KEY + " is reserved for UDP session setup");
+			}
+
 			Log.debug(String.format("Packet %s set to key %s", name, key));
 
 			clazzesIntegerClazz.put(key, value);
@@ -280,10 +554,24 @@ public class Connection<T> extends SimpleChannelInboundHandler<ByteBuf> {
 		});
 	}
 
+	/**
+	 * Returns the packet class registered for the type ID found in the header of a received frame, or null if the frame is too short or the ID is unknown.
+	 */
+	public Class<?> getFrameClass(byte[] bytes) {
+		if (bytes == null || bytes.length < 3) {
+			return null;
+		}
+
+		return clazzesIntegerClazz.get(bytes[2] & 0xFF);
+	}
+
 	protected void setConnectionID(long connectionID) {
 		this.connectionID = connectionID;
 	}
 
+	/**
+	 * The server assigned ID of this connection, -1 until it is active. On a server the ID packs a slot index and its generation (see ConnectionRegistry), it is unique but not sequential.
+	 */
 	public long getConnectionID() {
 		return connectionID;
 	}
@@ -316,6 +604,25 @@ public class Connection<T> extends SimpleChannelInboundHandler<ByteBuf> {
 		server.removeConnection(connectionID);
 	}
 
+	public UdpSession getUdpSession() {
+		return udpSession;
+	}
+
+	public void setUdpSession(UdpSession udpSession) {
+		this.udpSession = udpSession;
+	}
+
+	/**
+	 * Enable or disable lazy decoding of received packets. When enabled, listeners receive {@link LazyPacket} handles that only unmarshal on first access, which suits connections that mostly route or forward traffic. The handles are not instances of the packet classes, so listeners must test with {@link Packet#is(Class)} and {@link Packet#as(Class)} instead of instanceof.
+	 */
+	public void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
+	public boolean isLazyDecoding() {
+		return lazyDecoding;
+	}
+
 	public Map<String, long[]> getPacketBytesSent() {
 		return packetBytesSent;
 	}
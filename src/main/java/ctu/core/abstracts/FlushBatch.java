@@ -0,0 +1,60 @@
+package ctu.core.abstracts;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Defers flushing of TCP sends made on the current thread. While a batch is open, {@link Connection#sendTCP(Packet)}
+ * only writes to the channel, and {@link #end()} flushes every connection that was written to once.
+ *
+ * Used by the shard tick loops so all outbound traffic of a tick leaves in one flush per connection.
+ *
+ * @author Fentus
+ */
+public final class FlushBatch {
+	private static final ThreadLocal<FlushBatch> CURRENT = new ThreadLocal<>();
+
+	private final Set<Connection<?>> pending = Collections.newSetFromMap(new IdentityHashMap<>());
+
+	private FlushBatch() {
+	}
+
+	/**
+	 * Opens a batch on the current thread. Batches do not nest, the previous batch (if any) is flushed first.
+	 */
+	public static FlushBatch begin() {
+		FlushBatch previous = CURRENT.get();
+		if (previous != null) {
+			previous.end();
+		}
+
+		FlushBatch batch = new FlushBatch();
+		CURRENT.set(batch);
+		return batch;
+	}
+
+	static FlushBatch current() {
+		return CURRENT.get();
+	}
+
+	void add(Connection<?> connection) {
+		pending.add(connection);
+	}
+
+	/**
+	 * Closes the batch and flushes every connection written to while it was open.
+	 */
+	public void end() {
+		if (CURRENT.get() == this) {
+			CURRENT.remove();
+		}
+
+		for (Connection<?> connection : new ArrayList<>(pending)) {
+			connection.flush();
+		}
+
+		pending.clear();
+	}
+}
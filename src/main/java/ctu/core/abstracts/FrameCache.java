@@ -0,0 +1,220 @@
+package ctu.core.abstracts;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Cache of encoded frames for packets that are sent unchanged to many connections, such as zone configuration, item
+ * tables or the MOTD. Entries are keyed by an identity chosen by the caller plus a version, so bumping the version
+ * re-encodes the packet once and every later send reuses the new frame.
+ *
+ * The cache is bounded by the total size of the cached frames and evicts the least recently used entries first. A
+ * frame encodes the packet key of the connection it was built on, so only share a cache between connections that
+ * register their packets in the same order.
+ *
+ * Concurrent misses for the same key and version are cached once: the first caller encodes and caches the frame, the
+ * others encode their own copy without caching it rather than wait, since callers are usually event loops.
+ *
+ * @author Fentus
+ */
+public class FrameCache {
+	private long maxBytes;
+	private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75F, true);
+	// Encodes in progress, keyed by key and version.
+	private final HashSet<Flight> flights = new HashSet<>();
+
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param maxBytes upper bound for the total size of the cached frames
+	 */
+	public FrameCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Sends a packet through the cache: on a hit the cached frame is written as a retained duplicate, on a miss the packet is encoded on this connection and cached.
+	 *
+	 * @param connection the connection to send to
+	 * @param key        identity of the packet content, e.g. "zone-config:42"
+	 * @param version    version of the content, a different version replaces the cached frame
+	 * @param packet     the packet, only encoded on a miss
+	 */
+	public void send(Connection<?> connection, Object key, long version, Packet packet) {
+		ByteBuf frame = acquire(connection, key, version, packet);
+
+		if (frame != null) {
+			connection.sendFrame(frame, Connection.getPacketName(packet));
+		}
+	}
+
+	/**
+	 * Returns a retained duplicate of the cached frame, encoding and caching it on a miss. The caller owns the returned reference.
+	 *
+	 * @return the frame, or null if the packet could not be encoded
+	 */
+	public ByteBuf acquire(Connection<?> connection, Object key, long version, Packet packet) {
+		Flight flight = new Flight(key, version);
+		boolean own;
+
+		synchronized (this) {
+			Entry entry = entries.get(key);
+
+			if (entry != null && entry.version == version) {
+				hits++;
+				return entry.frame.retainedDuplicate();
+			}
+
+			misses++;
+			own = flights.add(flight);
+		}
+
+		if (!own) {
+			// Another caller is encoding this version. Waiting would stall this event loop behind its compression, encode a private copy instead.
+			byte[] bytes = connection.encodeFrame(packet);
+			return bytes == null ? null : Unpooled.wrappedBuffer(bytes);
+		}
+
+		try {
+			// Encode outside the lock, compression is the expensive part.
+			byte[] bytes = connection.encodeFrame(packet);
+
+			if (bytes == null) {
+				return null;
+			}
+
+			ByteBuf frame = Unpooled.wrappedBuffer(bytes);
+
+			// The caller gets its own view, writing it must not move the cached buffer's indexes.
+			ByteBuf duplicate = frame.retainedDuplicate();
+			put(key, new Entry(version, frame));
+			return duplicate;
+		} finally {
+			synchronized (this) {
+				flights.remove(flight);
+			}
+		}
+	}
+
+	/**
+	 * Changes the size bound, evicting the least recently used frames down to it.
+	 */
+	public synchronized void resize(long maxBytes) {
+		this.maxBytes = maxBytes;
+		evict();
+	}
+
+	public synchronized long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * Drops the cached frame for a key.
+	 */
+	public synchronized void invalidate(Object key) {
+		Entry entry = entries.remove(key);
+
+		if (entry != null) {
+			bytes -= entry.size;
+			entry.frame.release();
+		}
+	}
+
+	public synchronized void clear() {
+		for (Entry entry : entries.values()) {
+			entry.frame.release();
+		}
+
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getSize() {
+		return bytes;
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private synchronized void put(Object key, Entry entry) {
+		Entry previous = entries.get(key);
+
+		// Another thread may have cached a newer version meanwhile, and a frame above the bound would only flush the rest.
+		if ((previous != null && previous.version > entry.version) || entry.size > maxBytes) {
+			entry.frame.release();
+			return;
+		}
+
+		if (previous != null) {
+			entries.remove(key);
+			bytes -= previous.size;
+			previous.frame.release();
+		}
+
+		entries.put(key, entry);
+		bytes += entry.size;
+
+		evict();
+	}
+
+	private void evict() {
+		Iterator<Map.Entry<Object, Entry>> it = entries.entrySet().iterator();
+
+		while (bytes > maxBytes && it.hasNext()) {
+			Entry eldest = it.next().getValue();
+			it.remove();
+			bytes -= eldest.size;
+			eldest.frame.release();
+		}
+	}
+
+	private static final class Flight {
+		private final Object key;
+		private final long version;
+
+		Flight(Object key, long version) {
+			this.key = key;
+			this.version = version;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Flight)) {
+				return false;
+			}
+
+			Flight other = (Flight) o;
+			return version == other.version && key.equals(other.key);
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(key, version);
+		}
+	}
+
+	private static final class Entry {
+		private final long version;
+		private final ByteBuf frame;
+		private final int size;
+
+		Entry(long version, ByteBuf frame) {
+			this.version = version;
+			this.frame = frame;
+			this.size = frame.readableBytes();
+		}
+	}
+}
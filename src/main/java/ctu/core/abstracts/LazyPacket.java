@@ -0,0 +1,137 @@
+package ctu.core.abstracts;
+
+/**
+ * A received packet whose fields have not been unmarshalled yet. It carries the packet type and the frame as it came
+ * off the wire, and decodes through the receiving connection on the first call to {@link #get()}.
+ *
+ * Listeners that only route, count or forward packets can work with {@link #getPacketClass()} and pass the handle
+ * straight to {@link Connection#sendTCP(Packet)}, which re-sends the original frame without decoding it. Changes made to
+ * the decoded packet are not reflected when the handle itself is forwarded, send the decoded packet instead.
+ *
+ * Since the handle is not an instance of the packet class, instanceof checks on received packets stop matching when
+ * lazy decoding is on. Use {@link Packet#is(Class)} and {@link Packet#as(Class)}, which work for both. Unmarshalling
+ * into the handle decodes into a new instance of the carried class and replaces the original frame.
+ *
+ * @author Fentus
+ */
+public final class LazyPacket extends Packet {
+	private final Connection<?> connection;
+	private final int typeId;
+	private final Class<?> packetClass;
+	private volatile byte[] frame;
+
+	private volatile boolean decoded = false;
+	private Packet packet;
+
+	LazyPacket(Connection<?> connection, int typeId, Class<?> packetClass, byte[] frame) {
+		this.connection = connection;
+		this.typeId = typeId;
+		this.packetClass = packetClass;
+		this.frame = frame;
+	}
+
+	/**
+	 * Returns the decoded packet, unmarshalling it on first access. Returns null if the frame could not be decoded.
+	 */
+	public Packet get() {
+		if (!decoded) {
+			synchronized (this) {
+				if (!decoded) {
+					packet = connection.bytesToPacket(frame);
+					decoded = true;
+				}
+			}
+		}
+
+		return packet;
+	}
+
+	/**
+	 * Returns the decoded packet cast to the given type, or null if this handle carries a different packet type.
+	 */
+	public <P extends Packet> P get(Class<P> type) {
+		if (!is(type)) {
+			return null;
+		}
+
+		return type.cast(get());
+	}
+
+	@Override
+	public boolean is(Class<?> type) {
+		return type.isAssignableFrom(packetClass);
+	}
+
+	@Override
+	public <P extends Packet> P as(Class<P> type) {
+		return get(type);
+	}
+
+	public boolean isDecoded() {
+		return decoded;
+	}
+
+	public int getTypeId() {
+		return typeId;
+	}
+
+	public Class<?> getPacketClass() {
+		return packetClass;
+	}
+
+	/**
+	 * Returns the original frame (header included), or null once the handle was unmarshalled into. The array is shared, callers must not modify it.
+	 */
+	public byte[] getFrame() {
+		return frame;
+	}
+
+	/**
+	 * Marshals the decoded packet. The frame holds compressed data with a header, so it can't stand in for the body.
+	 *
+	 * @throws IllegalStateException if the frame could not be decoded
+	 */
+	@Override
+	public int marshal(byte[] buf, int offset) {
+		Packet packet = get();
+
+		if (packet == null) {
+			throw new IllegalStateException("Cannot marshal " + packetClass.getName() + ", its frame could not be decoded");
+		}
+
+		return packet.marshal(buf, offset);
+	}
+
+	@Override
+	public synchronized int unmarshal(byte[] buf, int offset) {
+		Packet target = newPacket();
+		int end = target.unmarshal(buf, offset);
+		replace(target);
+		return end;
+	}
+
+	@Override
+	public synchronized int unmarshal(byte[] buf, int offset, int end) {
+		Packet target = newPacket();
+		int read = target.unmarshal(buf, offset, end);
+		replace(target);
+		return read;
+	}
+
+	private Packet newPacket() {
+		try {
+			return (Packet) packetClass.getConstructor().newInstance();
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot instantiate " + packetClass.getName(), e);
+		}
+	}
+
+	/**
+	 * The handle now stands for the given packet, the original frame no longer matches it.
+	 */
+	private void replace(Packet target) {
+		packet = target;
+		decoded = true;
+		frame = null;
+	}
+}
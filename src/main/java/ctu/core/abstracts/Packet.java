@@ -18,4 +18,18 @@ public abstract class Packet {
 
 	// Unmarshals the packet data from a byte array starting at the given offset and ending at the specified end index.
 	public abstract int unmarshal(byte[] buf, int offset, int end);
+
+	/**
+	 * Whether this is a packet of the given type. Unlike instanceof, this also matches a {@link LazyPacket} carrying that type, so listeners work the same with and without lazy decoding.
+	 */
+	public boolean is(Class<?> type) {
+		return type.isInstance(this);
+	}
+
+	/**
+	 * Returns this packet as the given type, decoding a {@link LazyPacket} if needed, or null if it is a different type.
+	 */
+	public <P extends Packet> P as(Class<P> type) {
+		return type.isInstance(this) ? type.cast(this) : null;
+	}
 }
@@ -0,0 +1,338 @@
+package ctu.core.abstracts;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import ctu.core.logger.Log;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.socket.DatagramPacket;
+
+/**
+ * The UDP side of a connection: an AES-GCM key and sequence numbers shared by the two ends of a TCP session.
+ *
+ * A client that supports UDP asks for a session with an empty control frame once its TLS connection is up. Only then
+ * does the server create the session and hand the session ID, key and UDP port back in a control frame over the same
+ * connection, so the key never travels in the clear and clients that don't know control frames never receive one. A datagram is laid out as
+ * [8 session ID][8 sequence][ciphertext + 16 byte tag]; the header is authenticated, and the nonce combines the
+ * direction with the sequence number so both ends can share one key. The receiver drops datagrams that fail
+ * authentication and any datagram not newer than the last one it accepted, so delivery is unreliable but never goes
+ * back in time.
+ *
+ * The control key also carries the link token a server bridge announces for its shared memory ring: a control frame
+ * with an 8 byte token and nothing else, sent by the client side only.
+ *
+ * The server learns the client's address from the first datagram that authenticates. It follows the client across NAT
+ * rebinding only after {@link #REBIND_THRESHOLD} consecutive authentic datagrams from a new address, so an on-path
+ * attacker that re-sends one captured datagram from its own address cannot redirect the stream.
+ *
+ * @author Fentus
+ */
+public class UdpSession {
+	/** Packet key of the control frame, never use it for a registered packet */
+	public static final int CONTROL_KEY = 0xFF;
+
+	/** Frames above this size go over TCP instead, so datagrams stay below common path MTUs */
+	public static final int MAX_FRAME_SIZE = 1200;
+
+	/** Consecutive authentic datagrams from a new address before the server sends to it */
+	public static final int REBIND_THRESHOLD = 3;
+
+	public static final int HEADER_SIZE = 16;
+	private static final int TAG_SIZE = 16;
+	private static final int KEY_SIZE = 32;
+	private static final int CONTROL_SIZE = 8 + KEY_SIZE + 2;
+	private static final int LINK_TOKEN_SIZE = 8;
+
+	private static final byte CLIENT_TO_SERVER = 0;
+	private static final byte SERVER_TO_CLIENT = 1;
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+	private static final ThreadLocal<Cipher> CIPHER = ThreadLocal.withInitial(() -> {
+		try {
+			return Cipher.getInstance("AES/GCM/NoPadding");
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("AES-GCM is not available", e);
+		}
+	});
+
+	private final long sessionId;
+	private final byte[] key;
+	private final SecretKeySpec keySpec;
+	private final boolean server;
+
+	private final AtomicLong sendSequence = new AtomicLong();
+	private long receiveSequence = 0;
+
+	private volatile Channel channel;
+	private volatile InetSocketAddress remote;
+
+	// Address that may replace remote, and how many datagrams in a row came from it. Guarded by this.
+	private InetSocketAddress candidate;
+	private int candidateCount = 0;
+
+	private UdpSession(long sessionId, byte[] key, boolean server) {
+		this.sessionId = sessionId;
+		this.key = key;
+		this.keySpec = new SecretKeySpec(key, "AES");
+		this.server = server;
+	}
+
+	/**
+	 * Creates the server side of a new session with a random ID and key.
+	 */
+	public static UdpSession newServerSession(Channel channel) {
+		byte[] key = new byte[KEY_SIZE];
+		RANDOM.nextBytes(key);
+
+		UdpSession session = new UdpSession(RANDOM.nextLong(), key, true);
+		session.channel = channel;
+		return session;
+	}
+
+	/**
+	 * Creates the client side of a session from a control frame received over TCP.
+	 *
+	 * @param  frame the whole frame, header included
+	 * @return       the session, or null if the frame is malformed
+	 */
+	public static UdpSession fromControlFrame(byte[] frame) {
+		if (frame.length != 3 + CONTROL_SIZE) {
+			return null;
+		}
+
+		ByteBuffer buffer = ByteBuffer.wrap(frame, 3, CONTROL_SIZE);
+		long sessionId = buffer.getLong();
+		byte[] key = new byte[KEY_SIZE];
+		buffer.get(key);
+
+		return new UdpSession(sessionId, key, false);
+	}
+
+	/**
+	 * The UDP port announced in a control frame.
+	 */
+	public static int getControlPort(byte[] frame) {
+		return ((frame[frame.length - 2] & 0xFF) << 8) | (frame[frame.length - 1] & 0xFF);
+	}
+
+	public static boolean isControlFrame(byte[] frame) {
+		return frame.length >= 3 && (frame[2] & 0xFF) == CONTROL_KEY;
+	}
+
+	/**
+	 * Whether a control frame is a client's request for a session rather than the server's answer.
+	 */
+	public static boolean isRequestFrame(byte[] frame) {
+		return frame.length == 3 && isControlFrame(frame);
+	}
+
+	/**
+	 * Builds the request a client sends over TCP to ask for a session: the frame header with {@link #CONTROL_KEY} and no data.
+	 */
+	public static byte[] toRequestFrame() {
+		return new byte[] { 0, 0, (byte) CONTROL_KEY };
+	}
+
+	/**
+	 * Whether a control frame announces a bridge's link token rather than dealing with a UDP session.
+	 */
+	public static boolean isLinkTokenFrame(byte[] frame) {
+		return frame.length == 3 + LINK_TOKEN_SIZE && isControlFrame(frame);
+	}
+
+	/**
+	 * Builds the control frame a bridge sends over TCP to name the shared memory ring it produces into: the frame header with {@link #CONTROL_KEY}, then the token.
+	 */
+	public static byte[] toLinkTokenFrame(long token) {
+		ByteBuffer buffer = ByteBuffer.allocate(3 + LINK_TOKEN_SIZE);
+		buffer.putShort((short) LINK_TOKEN_SIZE);
+		buffer.put((byte) CONTROL_KEY);
+		buffer.putLong(token);
+		return buffer.array();
+	}
+
+	/**
+	 * The token of a frame for which {@link #isLinkTokenFrame(byte[])} holds.
+	 */
+	public static long getLinkToken(byte[] frame) {
+		return ByteBuffer.wrap(frame, 3, LINK_TOKEN_SIZE).getLong();
+	}
+
+	/**
+	 * Returns the session ID of a datagram without consuming it, or 0 if it is too short to be one.
+	 */
+	public static long peekSessionId(ByteBuf datagram) {
+		if (datagram.readableBytes() < HEADER_SIZE + TAG_SIZE) {
+			return 0;
+		}
+		return datagram.getLong(datagram.readerIndex());
+	}
+
+	/**
+	 * Builds the control frame the server sends over TCP: the usual frame header with {@link #CONTROL_KEY}, then session ID, key and UDP port, uncompressed.
+	 */
+	public byte[] toControlFrame(int udpPort) {
+		ByteBuffer buffer = ByteBuffer.allocate(3 + CONTROL_SIZE);
+		buffer.putShort((short) CONTROL_SIZE);
+		buffer.put((byte) CONTROL_KEY);
+		buffer.putLong(sessionId);
+		buffer.put(key);
+		buffer.putShort((short) udpPort);
+		return buffer.array();
+	}
+
+	/**
+	 * Encrypts a frame and sends it to the bound peer. An empty frame is a keepalive that only refreshes the peer's view of our address.
+	 *
+	 * @return false if there is no channel or peer address yet
+	 */
+	public boolean send(byte[] frame) {
+		Channel channel = this.channel;
+		InetSocketAddress remote = this.remote;
+
+		if (channel == null || remote == null || !channel.isActive()) {
+			return false;
+		}
+
+		byte[] datagram = seal(frame);
+		if (datagram == null) {
+			return false;
+		}
+
+		channel.writeAndFlush(new DatagramPacket(Unpooled.wrappedBuffer(datagram), remote));
+		return true;
+	}
+
+	/**
+	 * Authenticates and decrypts a datagram addressed to this session.
+	 *
+	 * @return the frame (empty for a keepalive), or null if the datagram is forged, replayed or older than the last one accepted
+	 */
+	public byte[] open(ByteBuf datagram) {
+		int length = datagram.readableBytes();
+		if (length < HEADER_SIZE + TAG_SIZE) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		datagram.getBytes(datagram.readerIndex(), bytes);
+
+		ByteBuffer header = ByteBuffer.wrap(bytes, 0, HEADER_SIZE);
+		if (header.getLong() != sessionId) {
+			return null;
+		}
+		long sequence = header.getLong();
+
+		byte[] frame;
+
+		try {
+			Cipher cipher = CIPHER.get();
+			cipher.init(Cipher.DECRYPT_MODE, keySpec, new GCMParameterSpec(TAG_SIZE * 8, nonce(server ? CLIENT_TO_SERVER : SERVER_TO_CLIENT, sequence)));
+			cipher.updateAAD(bytes, 0, HEADER_SIZE);
+			frame = cipher.doFinal(bytes, HEADER_SIZE, length - HEADER_SIZE);
+		} catch (GeneralSecurityException e) {
+			return null;
+		}
+
+		synchronized (this) {
+			if (sequence <= receiveSequence) {
+				return null;
+			}
+			receiveSequence = sequence;
+		}
+
+		return frame;
+	}
+
+	public long getSessionId() {
+		return sessionId;
+	}
+
+	public void setChannel(Channel channel) {
+		this.channel = channel;
+	}
+
+	public Channel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Sets the address datagrams are sent to.
+	 */
+	public void bind(InetSocketAddress remote) {
+		this.remote = remote;
+	}
+
+	/**
+	 * Records the sender of a datagram that {@link #open(ByteBuf)} accepted. The first sender is bound right away, a
+	 * different one only after {@link #REBIND_THRESHOLD} datagrams in a row came from it.
+	 *
+	 * @return true if the bound address changed
+	 */
+	public synchronized boolean observeSender(InetSocketAddress sender) {
+		InetSocketAddress current = remote;
+
+		if (current == null) {
+			remote = sender;
+			return true;
+		}
+
+		if (sender.equals(current)) {
+			candidate = null;
+			candidateCount = 0;
+			return false;
+		}
+
+		if (!sender.equals(candidate)) {
+			candidate = sender;
+			candidateCount = 0;
+		}
+
+		if (++candidateCount < REBIND_THRESHOLD) {
+			return false;
+		}
+
+		remote = sender;
+		candidate = null;
+		candidateCount = 0;
+		return true;
+	}
+
+	public boolean isBound() {
+		return remote != null && channel != null;
+	}
+
+	private byte[] seal(byte[] frame) {
+		long sequence = sendSequence.incrementAndGet();
+
+		byte[] datagram = new byte[HEADER_SIZE + frame.length + TAG_SIZE];
+		ByteBuffer.wrap(datagram).putLong(sessionId).putLong(sequence);
+
+		try {
+			Cipher cipher = CIPHER.get();
+			cipher.init(Cipher.ENCRYPT_MODE, keySpec, new GCMParameterSpec(TAG_SIZE * 8, nonce(server ? SERVER_TO_CLIENT : CLIENT_TO_SERVER, sequence)));
+			cipher.updateAAD(datagram, 0, HEADER_SIZE);
+			cipher.doFinal(frame, 0, frame.length, datagram, HEADER_SIZE);
+			return datagram;
+		} catch (GeneralSecurityException e) {
+			Log.debug("UDP encryption failed: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static byte[] nonce(byte direction, long sequence) {
+		byte[] nonce = new byte[12];
+		nonce[0] = direction;
+		ByteBuffer.wrap(nonce, 4, 8).putLong(sequence);
+		return nonce;
+	}
+}
@@ -1,8 +1,11 @@
 package ctu.core.client;
 
 import java.io.File;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.time.Instant;
 import java.util.HashMap;
+import java.util.List;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
@@ -10,25 +13,38 @@ import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.SSLException;
 
+import ctu.core.abstracts.Connection;
 import ctu.core.abstracts.Packet;
+import ctu.core.abstracts.UdpSession;
 import ctu.core.callbacks.CallbackConnect;
 import ctu.core.interfaces.Listener;
 import ctu.core.logger.Log;
 import ctu.core.packets.PacketPing;
+import ctu.core.security.LinkAuthHandler;
+import ctu.core.security.SslContextCache;
+import ctu.core.server.Server;
+import ctu.core.transport.NetworkResources;
+import ctu.core.transport.Transport;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.socket.DatagramPacket;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLParameters;
 
 import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SslProvider;
 import io.netty.handler.timeout.ReadTimeoutHandler;
@@ -43,16 +59,29 @@ import io.netty.util.concurrent.FutureListener;
  * @param  <T>
  */
 public class Client<T> implements Runnable {
-	// Creating a thread pool with a cached pool of threads.
-	private ScheduledExecutorService executorService = Executors.newScheduledThreadPool(32);
+	// Own timer and connect thread, the timer is only used when no shared NetworkResources are set.
+	private ScheduledExecutorService executorService;
+	private volatile NetworkResources resources;
 
 	private final String host;
 	private final int port;
 	private int timeout;
 	private final T connectionObject;
 	private final int marshalBufferSize;
-
-	private SslContext sslCtx;
+	private volatile boolean lazyDecoding = false;
+	private volatile Transport transport = Transport.auto();
+	// Transport of the current connection, the UDP channel has to run on the same event loops.
+	private volatile Transport connectedTransport;
+	private volatile String linkSecret;
+	private volatile String localServerId;
+	private volatile String socketPath;
+	private volatile boolean socketTls = true;
+
+	// Built on first use from server.crt, provider and cipher suites, unless one was passed in.
+	private volatile SslContext sslCtx;
+	private final boolean sslCtxInjected;
+	private volatile SslProvider sslProvider;
+	private volatile List<String> cipherSuites;
 	private long ping = 0;
 	private String pingName = "";
 
@@ -86,24 +115,116 @@ public class Client<T> implements Runnable {
 	 * sent; smaller is fine for clients that never send big batches.
 	 */
 	public Client(String host, int port, int timeout, T connectionObject, int marshalBufferSize) {
+		this(host, port, timeout, connectionObject, marshalBufferSize, null);
+	}
+
+	/**
+	 * Constructs a new Client with a prebuilt SSL context. Clients that reconnect often (e.g. bridges) should share one context instead of re-reading server.crt for each instance. {@link #setSslProvider(SslProvider)} and {@link #setCipherSuites(String...)} are then ignored.
+	 *
+	 * @param sslCtx the context, or null to build one from server.crt when first needed
+	 */
+	public Client(String host, int port, int timeout, T connectionObject, int marshalBufferSize, SslContext sslCtx) {
 		this.host = host;
 		this.port = port;
 		this.timeout = timeout;
 		this.connectionObject = connectionObject;
 		this.marshalBufferSize = marshalBufferSize;
+		this.sslCtx = sslCtx;
+		this.sslCtxInjected = sslCtx != null;
+	}
 
-		try {
-			// @formatter:off
-			this.sslCtx = SslContextBuilder
-					.forClient()
-					.sslProvider(SslProvider.JDK)
-					.protocols("TLSv1.3")
-					.trustManager(new File("server.crt"))
-					.build();
-			// @formatter:on
-		} catch (SSLException e) {
-			Log.error("SSL context initialization failed", e);
+	/**
+	 * Build the SSL context with a specific TLS provider instead of {@link SslContextCache#getDefaultProvider()}. The server certificate stays pinned. Ignored when an SSL context was passed to the constructor. Applies to the next {@link #start()}.
+	 */
+	public synchronized void setSslProvider(SslProvider provider) {
+		if (sslCtxInjected) {
+			Log.warn("setSslProvider ignored: the client was given a prebuilt SSL context");
+			return;
+		}
+
+		if (!SslContextCache.isAvailable(provider)) {
+			Log.warn("TLS provider " + provider + " is not available");
+			return;
+		}
+
+		this.sslProvider = provider;
+		this.sslCtx = null;
+	}
+
+	/**
+	 * Restrict TLS to the given cipher suites, e.g. TLS_AES_128_GCM_SHA256 on links between servers where AES-NI makes it the cheapest suite. Combines with {@link #setSslProvider(SslProvider)}, ignored when an SSL context was passed to the constructor. Applies to the next {@link #start()}.
+	 */
+	public synchronized void setCipherSuites(String... cipherSuites) {
+		if (sslCtxInjected) {
+			Log.warn("setCipherSuites ignored: the client was given a prebuilt SSL context");
+			return;
+		}
+
+		this.cipherSuites = cipherSuites == null || cipherSuites.length == 0 ? null : List.of(cipherSuites);
+		this.sslCtx = null;
+	}
+
+	/**
+	 * The SSL context, built from server.crt with the configured provider and cipher suites on first use.
+	 *
+	 * @return the context, or null if it could not be built
+	 */
+	public SslContext getSslContext() {
+		SslContext context = sslCtx;
+		if (context != null) {
+			return context;
 		}
+
+		synchronized (this) {
+			if (sslCtx == null) {
+				SslProvider provider = sslProvider != null ? sslProvider : SslContextCache.getDefaultProvider();
+
+				try {
+					sslCtx = SslContextCache.client(new File("server.crt"), provider, cipherSuites);
+				} catch (SSLException e) {
+					Log.error("SSL context initialization failed", e);
+				}
+			}
+			return sslCtx;
+		}
+	}
+
+	/**
+	 * Connect without TLS and prove knowledge of a shared secret instead (see {@link LinkAuthHandler}). Only for links between servers on a trusted network, the server has to accept on its trusted link port. Pass null to go back to TLS. Applies to the next {@link #start()}.
+	 */
+	public void setLinkSecret(String linkSecret) {
+		this.linkSecret = linkSecret;
+	}
+
+	public boolean isPlaintext() {
+		return !usesTls();
+	}
+
+	private boolean usesTls() {
+		return localServerId == null && linkSecret == null && (socketPath == null || socketTls);
+	}
+
+	/**
+	 * Connect to a server on this host through a Unix domain socket (see {@link ctu.core.server.Server#bindUnixSocket(String, boolean)}) instead of host and port. Needs the epoll transport, which is used for this connection whatever {@link #setTransport(Transport)} says. Pass null to connect over TCP again. Applies to the next {@link #start()}.
+	 *
+	 * @param path socket file
+	 * @param tls  false when the server listens without TLS on the socket; a link secret set with {@link #setLinkSecret(String)} is then used for the hello
+	 */
+	public void setUnixSocket(String path, boolean tls) {
+		if (path != null && !Transport.EPOLL.isAvailable()) {
+			Log.warn("Unix domain sockets need the epoll transport, which is not available");
+			return;
+		}
+
+		this.socketPath = path;
+		this.socketTls = tls;
+	}
+
+	/**
+	 * Connect to a server in this JVM that was bound with {@link ctu.core.server.Server#bindLocal(String)} instead of host and port. The connection skips sockets and TLS. Pass null to connect over the network again. Applies to the next {@link #start()}.
+	 */
+	public void setLocalServer(String serverId) {
+		this.localServerId = serverId;
 	}
 
 	public void start() {
@@ -116,12 +237,28 @@ public class Client<T> implements Runnable {
 	public void start(CallbackConnect callbackConnect) {
 		this.callbackConnect = callbackConnect;
 
-		executorService.execute(this);
-		pingTask = executorService.scheduleAtFixedRate(new Runnable() {
+		NetworkResources resources = getSharedLoops();
+		if (resources != null) {
+			// Connecting is asynchronous, with shared event loops no thread has to wait for the channel to close.
+			connect(resources.getWorkerGroup(), resources.getTransport());
+		} else {
+			// run() holds its thread until the connection closes, never take a thread of the shared scheduler for it.
+			getOwnExecutorService().execute(this);
+		}
+
+		pingTask = getExecutorService().scheduleAtFixedRate(new Runnable() {
 			@Override
 			public void run() {
 				if (connected) {
 					getClient().sendTCP(new PacketPing().withTime(Instant.now()));
+
+					// Keeps the NAT mapping and the server's view of our UDP address fresh.
+					ClientConnectionHandler<T> handler = connectionHandler;
+					UdpSession udpSession = handler == null ? null : handler.getUdpSession();
+					if (udpSession != null) {
+						udpSession.send(new byte[0]);
+					}
+
 					if (pingName != null && !pingName.isEmpty()) {
 						Log.trace(String.format("[%s] Ping sent (M/S): %.2f", pingName, ping / 1_000_000.0F));
 					}
@@ -135,9 +272,6 @@ public class Client<T> implements Runnable {
 
 		close();
 
-		// Creating a thread pool with a cached pool of threads.
-		executorService = Executors.newScheduledThreadPool(32);
-
 		if (future != null && future.channel().isOpen()) {
 			try {
 				future.channel().close().sync();
@@ -159,7 +293,122 @@ public class Client<T> implements Runnable {
 		}
 	}
 
+	/**
+	 * Sends a packet over UDP, see {@link Connection#sendUDP(Packet)}. Goes over TCP until the server has set up a UDP session for this connection.
+	 */
+	public void sendUDP(Packet packet) {
+		if (connectionHandler != null && isConnected()) {
+			connectionHandler.sendUDP(packet);
+		} else {
+			Log.debug("Cannot send UDP: not connected.");
+		}
+	}
+
+	/**
+	 * Asks the server for a UDP session. Only over TLS, since the answer carries the session key; servers without UDP ignore the request.
+	 */
+	void requestUdp(ClientConnectionHandler<T> handler) {
+		ChannelHandlerContext ctx = handler.getCtx();
+
+		if (ctx.channel() instanceof SocketChannel && ctx.pipeline().get(SslHandler.class) != null) {
+			handler.sendFrame(Unpooled.wrappedBuffer(UdpSession.toRequestFrame()), UdpSession.class.getSimpleName());
+		}
+	}
+
+	/**
+	 * Sets up the UDP session announced by the server: binds a datagram channel on the connection's event loop and says hello, so the server learns our address. The channel is closed with the TCP connection.
+	 */
+	void openUdp(ClientConnectionHandler<T> handler, byte[] frame) {
+		UdpSession session = UdpSession.fromControlFrame(frame);
+		Channel tcp = handler.getCtx().channel();
+
+		if (session == null || !(tcp.remoteAddress() instanceof InetSocketAddress)) {
+			Log.debug("Ignoring UDP session from " + tcp.remoteAddress());
+			return;
+		}
+
+		InetSocketAddress server = new InetSocketAddress(((InetSocketAddress) tcp.remoteAddress()).getAddress(), UdpSession.getControlPort(frame));
+
+		Bootstrap bootstrap = new Bootstrap().group(tcp.eventLoop()).channel(connectedTransport.datagramChannelClass()).handler(new SimpleChannelInboundHandler<DatagramPacket>() {
+			@Override
+			protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception {
+				if (!server.equals(packet.sender())) {
+					return;
+				}
+
+				byte[] received = session.open(packet.content());
+
+				if (received != null && received.length > 0) {
+					handler.receiveDatagram(received);
+				}
+			}
+		});
+
+		bootstrap.bind(0).addListener((ChannelFutureListener) bound -> {
+			if (!bound.isSuccess()) {
+				Log.warn("UDP bind failed, sendUDP stays on TCP: " + bound.cause().getMessage());
+				return;
+			}
+
+			Channel udp = bound.channel();
+			tcp.closeFuture().addListener((ChannelFutureListener) _ -> udp.close());
+
+			session.setChannel(udp);
+			session.bind(server);
+			handler.setUdpSession(session);
+			session.send(new byte[0]);
+
+			Log.debug("UDP session established with " + server);
+		});
+	}
+
+	/**
+	 * Enable lazy decoding for the next connection. Listeners then receive {@link ctu.core.abstracts.LazyPacket} handles that are only unmarshalled when read, and re-sent from their original bytes when forwarded. instanceof checks in listeners stop matching, use {@link Packet#is(Class)} and {@link Packet#as(Class)} instead.
+	 */
+	public void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
+	public boolean isLazyDecoding() {
+		return lazyDecoding;
+	}
+
+	/**
+	 * Select the socket transport (NIO, epoll or io_uring) for the next connection. Defaults to {@link Transport#auto()}.
+	 */
+	public void setTransport(Transport transport) {
+		if (transport.isAvailable()) {
+			this.transport = transport;
+		} else {
+			Log.warn("Transport " + transport + " is not available, keeping " + this.transport);
+		}
+	}
+
+	public Transport getTransport() {
+		NetworkResources resources = this.resources;
+		return resources != null ? resources.getTransport() : transport;
+	}
+
+	/**
+	 * Run on event loops and a timer shared with other Clients and Servers in this JVM instead of a dedicated event loop group and thread pool per client. The transport of the resources replaces {@link #setTransport(Transport)}. Applies to the next {@link #start()}.
+	 */
+	public void setNetworkResources(NetworkResources resources) {
+		this.resources = resources;
+	}
+
+	public NetworkResources getNetworkResources() {
+		return resources;
+	}
+
+	/**
+	 * Register a packet class under the next key. Keys are one byte and {@link UdpSession#CONTROL_KEY} is reserved, so at most 255 classes fit.
+	 *
+	 * @throws IllegalStateException if every key is taken
+	 */
 	public void register(Class<?> clazz) {
+		if (key >= UdpSession.CONTROL_KEY) {
+			throw new IllegalStateException("Cannot register " + clazz.getSimpleName() + ": keys 0-" + (UdpSession.CONTROL_KEY - 1) + " are taken and " + UdpSession.CONTROL_KEY + " is reserved for UDP session setup");
+		}
 		clazzes.put(key++, clazz);
 	}
 
@@ -174,23 +423,100 @@ public class Client<T> implements Runnable {
 
 	@Override
 	public void run() {
+		NetworkResources resources = getSharedLoops();
+
+		if (resources != null) {
+			// Shared event loops are left running for the other endpoints.
+			connect(resources.getWorkerGroup(), resources.getTransport());
+			awaitClose();
+			return;
+		}
+
+		// Unix sockets are only available on epoll.
+		Transport transport = socketPath != null ? Transport.EPOLL : this.transport;
+
 		// Create a new event loop group.
-		NioEventLoopGroup group = new NioEventLoopGroup();
+		EventLoopGroup group = transport.newEventLoopGroup(0);
+
+		try {
+			connect(group, transport);
+			awaitClose();
+		} finally {
+			group.shutdownGracefully();
+		}
+	}
+
+	/**
+	 * The shared resources, unless this client dials a Unix socket and their loops are not epoll.
+	 */
+	private NetworkResources getSharedLoops() {
+		NetworkResources resources = this.resources;
 
+		if (resources != null && socketPath != null && resources.getTransport() != Transport.EPOLL) {
+			return null;
+		}
+		return resources;
+	}
+
+	private void awaitClose() {
 		try {
-			// Create a new Bootstrap instance.
-			Bootstrap bootstrap = new Bootstrap();
+			future.channel().closeFuture().sync();
+		} catch (InterruptedException e) {
+		}
+	}
 
-			// Set the event loop group, channel, and handler.
-			bootstrap.group(group).channel(NioSocketChannel.class).handler(new ChannelInitializer<SocketChannel>() {
-				@Override
-				public void initChannel(SocketChannel ch) throws Exception {
-					// Get the pipeline for the channel.
-					ChannelPipeline pipeline = ch.pipeline();
+	private void connect(EventLoopGroup group, Transport transport) {
+		String localServerId = this.localServerId;
+		String socketPath = this.socketPath;
+		String linkSecret = this.linkSecret;
+		boolean tls = usesTls();
 
+		Class<? extends Channel> channelClass;
+		SocketAddress address;
+
+		connectedTransport = transport;
+
+		if (localServerId != null) {
+			channelClass = LocalChannel.class;
+			address = Server.localAddress(localServerId);
+		} else if (socketPath != null) {
+			channelClass = EpollDomainSocketChannel.class;
+			address = new DomainSocketAddress(socketPath);
+		} else {
+			channelClass = transport.channelClass();
+			address = InetSocketAddress.createUnresolved(host, port);
+		}
+
+		// Create a new Bootstrap instance.
+		Bootstrap bootstrap = new Bootstrap();
+
+		// Set the event loop group, channel, and handler.
+		// Local channels run on any single threaded event loop, so they share the socket groups.
+		bootstrap.group(group).channel(channelClass).handler(new ChannelInitializer<Channel>() {
+			@Override
+			public void initChannel(Channel ch) throws Exception {
+				// Get the pipeline for the channel.
+				ChannelPipeline pipeline = ch.pipeline();
+
+				if (!tls) {
+					// The timeouts go first so they also cover the hello.
+					pipeline.addLast(new ReadTimeoutHandler(timeout)).addLast(new WriteTimeoutHandler(timeout));
+
+					// In-JVM channels hand frames over whole, nothing to authenticate or split.
+					if (localServerId == null) {
+						if (linkSecret != null) {
+							// Trusted link: a shared-secret hello instead of TLS.
+							pipeline.addLast(new LinkAuthHandler(false, linkSecret));
+						}
+
+						// Without TLS records, the stream may split or merge frames.
+						pipeline.addLast(Connection.newFrameDecoder());
+					}
+				} else {
 					// Add the SSL handler to the pipeline.
 					// Disable hostname verification since we pin the server certificate directly.
-					SslHandler sslHandler = sslCtx.newHandler(ch.alloc(), host, port);
+					// Host and port key the shared context's session cache, so a reconnect resumes the previous TLS session.
+					SslHandler sslHandler = getSslContext().newHandler(ch.alloc(), host, port);
 					SSLEngine engine = sslHandler.engine();
 					SSLParameters params = engine.getSSLParameters();
 					params.setEndpointIdentificationAlgorithm("");
@@ -215,17 +541,20 @@ public class Client<T> implements Runnable {
 					// Add a basic timeout if the client has not sent or received information in
 					// past X seconds.
 					ch.pipeline().addLast(new ReadTimeoutHandler(timeout)).addLast(new WriteTimeoutHandler(timeout));
+				}
 
-					// Assign new instance
-					connectionHandler = new ClientConnectionHandler<>(Client.this, connectionObject);
-					connectionHandler.setMarshalBufferSize(marshalBufferSize);
+				// Assign new instance
+				connectionHandler = new ClientConnectionHandler<>(Client.this, connectionObject);
+				connectionHandler.setMarshalBufferSize(marshalBufferSize);
+				connectionHandler.setLazyDecoding(lazyDecoding);
 
-					// Set the classes for the connection handler.
-					connectionHandler.setClazzes(clazzes);
+				// Set the classes for the connection handler.
+				connectionHandler.setClazzes(clazzes);
 
-					// Add the connection handler to the pipeline.
-					pipeline.addLast(connectionHandler);
+				// Add the connection handler to the pipeline.
+				pipeline.addLast(connectionHandler);
 
+				if (tls) {
 					// Add a channel inbound handler adapter to the pipeline.
 					pipeline.addLast(new ChannelInboundHandlerAdapter() {
 						@Override
@@ -240,45 +569,38 @@ public class Client<T> implements Runnable {
 							}
 						}
 					});
-
-					pipeline.addLast(new ChannelInboundHandlerAdapter() {
-						@Override
-						public void channelInactive(ChannelHandlerContext ctx) throws Exception {
-							connected = false;
-							super.channelInactive(ctx);
-						}
-					});
 				}
-			});
 
-			// Connect to the host and port.
-			future = bootstrap.connect(host, port);
+				pipeline.addLast(new ChannelInboundHandlerAdapter() {
+					@Override
+					public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+						connected = false;
+						super.channelInactive(ctx);
+					}
+				});
+			}
+		});
 
-			// Add a future listener to check if the connection was successful.
-			future.addListener(new FutureListener<Void>() {
-				@Override
-				public void operationComplete(Future<Void> future) throws Exception {
-					connected = future.isSuccess();
+		// Connect to the host and port.
+		future = bootstrap.connect(address);
 
-					if (connected) {
-						Log.trace("Connection success");
-					} else {
-						Log.trace("Connection failed");
-					}
+		// Add a future listener to check if the connection was successful.
+		future.addListener(new FutureListener<Void>() {
+			@Override
+			public void operationComplete(Future<Void> future) throws Exception {
+				connected = future.isSuccess();
 
-					if (callbackConnect != null) {
-						callbackConnect.execute(connected);
-					}
+				if (connected) {
+					Log.trace("Connection success");
+				} else {
+					Log.trace("Connection failed");
 				}
-			});
 
-			try {
-				future.channel().closeFuture().sync();
-			} catch (InterruptedException e) {
+				if (callbackConnect != null) {
+					callbackConnect.execute(connected);
+				}
 			}
-		} finally {
-			group.shutdownGracefully();
-		}
+		});
 	}
 
 	public Client<T> getClient() {
@@ -310,27 +632,57 @@ public class Client<T> implements Runnable {
 			pingTask = null;
 		}
 
-		executorService.shutdown(); // initiate shutdown
+		// A shared timer keeps running, only an own pool is stopped.
+		ScheduledExecutorService executorService;
+		synchronized (this) {
+			executorService = this.executorService;
+			this.executorService = null;
+		}
 
-		try {
-			// wait for all tasks to finish or timeout after 10 seconds
-			if (!executorService.awaitTermination(3, TimeUnit.SECONDS)) {
-				executorService.shutdownNow(); // force shutdown if tasks are still running after 10 seconds
+		if (executorService != null) {
+			executorService.shutdown(); // initiate shutdown
+
+			try {
+				// wait for all tasks to finish or timeout after 10 seconds
+				if (!executorService.awaitTermination(3, TimeUnit.SECONDS)) {
+					executorService.shutdownNow(); // force shutdown if tasks are still running after 10 seconds
+				}
+			} catch (InterruptedException ex) {
+				executorService.shutdownNow(); // force shutdown if waiting is interrupted
 			}
-		} catch (InterruptedException ex) {
-			executorService.shutdownNow(); // force shutdown if waiting is interrupted
 		}
 
 		try {
 			if (future != null) {
-				future.channel().close().sync();
+				ChannelFuture closeFuture = future.channel().close();
+
+				// Shared event loops may call close() from a listener, blocking there would deadlock.
+				if (!future.channel().eventLoop().inEventLoop()) {
+					closeFuture.sync();
+				}
 			}
 		} catch (InterruptedException e) {
 			Log.error("Channel close interrupted", e);
 		}
 	}
 
-	public ScheduledExecutorService getExecutorService() {
+	/**
+	 * The timer used for pings, either the shared {@link NetworkResources#getScheduler()} or a pool owned by this client.
+	 */
+	public synchronized ScheduledExecutorService getExecutorService() {
+		NetworkResources resources = this.resources;
+		if (resources != null) {
+			return resources.getScheduler();
+		}
+
+		return getOwnExecutorService();
+	}
+
+	private synchronized ScheduledExecutorService getOwnExecutorService() {
+		if (executorService == null) {
+			// Creating a thread pool with a cached pool of threads.
+			executorService = Executors.newScheduledThreadPool(32);
+		}
 		return executorService;
 	}
 
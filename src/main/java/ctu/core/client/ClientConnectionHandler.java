@@ -6,6 +6,7 @@ import java.util.concurrent.CopyOnWriteArrayList;
 
 import ctu.core.abstracts.Connection;
 import ctu.core.abstracts.Packet;
+import ctu.core.abstracts.UdpSession;
 import ctu.core.interfaces.Listener;
 import ctu.core.logger.Log;
 import ctu.core.packets.PacketPing;
@@ -40,6 +41,8 @@ public class ClientConnectionHandler<T> extends Connection<T> {
 
 		super.channelActive(ctx);
 
+		client.requestUdp(this);
+
 		listeners.forEach(listener -> listener.channelActive(this));
 
 		Log.debug("Client connected to server");
@@ -73,8 +76,14 @@ public class ClientConnectionHandler<T> extends Connection<T> {
 		byte[] bytes = new byte[size];
 		byteBuf.readBytes(bytes);
 
+		// UDP session key from the server, not a packet.
+		if (UdpSession.isControlFrame(bytes)) {
+			client.openUdp(this, bytes);
+			return;
+		}
+
 		// Convert bytes to packet
-		Packet packet = bytesToPacket(bytes);
+		Packet packet = readPacket(bytes);
 
 		// Set ping time.
 		if (packet instanceof PacketPing) {
@@ -87,7 +96,24 @@ public class ClientConnectionHandler<T> extends Connection<T> {
 			listeners.forEach(listener -> listener.channelRead(this, packet));
 		}
 
-		Log.trace("Received TCP packet: " + packet.getClass().getName() + ", Size: " + size + " bytes. ");
+		Log.trace("Received TCP packet: " + (packet == null ? "null" : packet.getClass().getName()) + ", Size: " + size + " bytes. ");
+	}
+
+	/**
+	 * Notifies the listeners of a frame received over the UDP session. Runs on the connection's event loop.
+	 */
+	void receiveDatagram(byte[] frame) {
+		if (isInactive()) {
+			return;
+		}
+
+		Packet packet = readPacket(frame);
+
+		if (packet != null) {
+			listeners.forEach(listener -> listener.channelRead(this, packet));
+		}
+
+		Log.trace("Received UDP packet: " + (packet == null ? "null" : packet.getClass().getName()) + ", Size: " + frame.length + " bytes. ");
 	}
 
 	@Override
@@ -0,0 +1,21 @@
+package ctu.core.interfaces;
+
+import ctu.core.abstracts.Connection;
+import ctu.core.abstracts.Packet;
+
+/**
+ * Logic driven by a shard's tick loop. Every method is called on the thread owning the shard, so state belonging to a
+ * single shard needs no locking.
+ *
+ * Each tick first delivers the packets received by the shard's connections since the previous tick through
+ * {@link #packetReceived}, then calls {@link #tick}. Packets sent during the tick are flushed once when it ends.
+ *
+ * @author     Fentus
+ * @param  <T>
+ */
+public interface ShardTickHandler<T> {
+	default void packetReceived(int shardId, Connection<T> connection, Packet packet) {
+	}
+
+	void tick(int shardId, long tick);
+}
@@ -0,0 +1,144 @@
+package ctu.core.security;
+
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import ctu.core.logger.Log;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.ByteToMessageDecoder;
+
+/**
+ * Shared-secret hello for trusted links that run without TLS.
+ *
+ * The server sends a random nonce, the client answers with HMAC-SHA256(secret, server nonce) and a nonce of its own, and
+ * the server proves the secret back over the client nonce. Until both proofs check out, channelActive is held back from
+ * the rest of the pipeline and nothing else is read; a peer that fails the exchange is disconnected. The handler removes
+ * itself afterwards, so the link then carries plain CTU frames.
+ *
+ * This authenticates the peer but does not encrypt or integrity-protect the traffic, only use it on networks you trust.
+ *
+ * @author Fentus
+ */
+public class LinkAuthHandler extends ByteToMessageDecoder {
+	private static final int NONCE_SIZE = 32;
+	private static final int PROOF_SIZE = 32;
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private final boolean server;
+	private final byte[] secret;
+
+	private byte[] localNonce;
+
+	/**
+	 * @param server true on the accepting side
+	 * @param secret the secret both ends are configured with
+	 */
+	public LinkAuthHandler(boolean server, String secret) {
+		if (secret == null || secret.isEmpty()) {
+			throw new IllegalArgumentException("A link secret is required");
+		}
+
+		this.server = server;
+		this.secret = secret.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public void channelActive(ChannelHandlerContext ctx) throws Exception {
+		// Held back until the peer is authenticated.
+		if (server) {
+			localNonce = newNonce();
+			ctx.writeAndFlush(ctx.alloc().buffer(NONCE_SIZE).writeBytes(localNonce));
+		}
+	}
+
+	@Override
+	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
+		if (server) {
+			// Client proof followed by the client nonce.
+			if (in.readableBytes() < PROOF_SIZE + NONCE_SIZE) {
+				return;
+			}
+
+			byte[] proof = read(in, PROOF_SIZE);
+			byte[] clientNonce = read(in, NONCE_SIZE);
+
+			if (!MessageDigest.isEqual(proof, sign("client", localNonce))) {
+				fail(ctx, in);
+				return;
+			}
+
+			ctx.writeAndFlush(ctx.alloc().buffer(PROOF_SIZE).writeBytes(sign("server", clientNonce)));
+			authenticated(ctx);
+		} else if (localNonce == null) {
+			// Server nonce.
+			if (in.readableBytes() < NONCE_SIZE) {
+				return;
+			}
+
+			byte[] serverNonce = read(in, NONCE_SIZE);
+			localNonce = newNonce();
+
+			ByteBuf reply = ctx.alloc().buffer(PROOF_SIZE + NONCE_SIZE);
+			reply.writeBytes(sign("client", serverNonce));
+			reply.writeBytes(localNonce);
+			ctx.writeAndFlush(reply);
+		} else {
+			// Server proof.
+			if (in.readableBytes() < PROOF_SIZE) {
+				return;
+			}
+
+			if (!MessageDigest.isEqual(read(in, PROOF_SIZE), sign("server", localNonce))) {
+				fail(ctx, in);
+				return;
+			}
+
+			authenticated(ctx);
+		}
+	}
+
+	private void authenticated(ChannelHandlerContext ctx) {
+		Log.debug("Link authenticated: " + ctx.channel().remoteAddress());
+
+		// Bytes already read past the hello are passed on when the decoder is removed.
+		ctx.fireChannelActive();
+		ctx.pipeline().remove(this);
+	}
+
+	private void fail(ChannelHandlerContext ctx, ByteBuf in) {
+		in.skipBytes(in.readableBytes());
+		Log.warn("Link authentication failed: " + ctx.channel().remoteAddress());
+		ctx.close();
+	}
+
+	private byte[] sign(String role, byte[] nonce) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+			mac.update(role.getBytes(StandardCharsets.UTF_8));
+			return mac.doFinal(nonce);
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			throw new RuntimeException("Failed to compute HMAC", e);
+		}
+	}
+
+	private static byte[] newNonce() {
+		byte[] nonce = new byte[NONCE_SIZE];
+		RANDOM.nextBytes(nonce);
+		return nonce;
+	}
+
+	private static byte[] read(ByteBuf in, int length) {
+		byte[] bytes = new byte[length];
+		in.readBytes(bytes);
+		return bytes;
+	}
+}
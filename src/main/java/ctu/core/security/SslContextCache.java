@@ -0,0 +1,270 @@
+package ctu.core.security;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.net.ssl.SSLException;
+
+import ctu.core.logger.Log;
+import io.netty.handler.ssl.OpenSslSessionContext;
+import io.netty.handler.ssl.OpenSslSessionTicketKey;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+
+/**
+ * Process-wide cache of the TLS contexts used by Server and Client.
+ *
+ * Building an SslContext parses the PEM files and sets up the provider, which is far more expensive than creating a
+ * handler from an existing context. Contexts are cached by the absolute paths of their files and rebuilt only when a
+ * file's modification time or size changes, so reconnecting clients and bridges reuse one context and a renewed
+ * certificate is picked up on the next lookup.
+ *
+ * The TLS provider defaults to OpenSSL (netty-tcnative, which is not a dependency of this project) when it is on the
+ * classpath and supports TLS 1.3, and to the JDK provider otherwise. Override it with {@link #setDefaultProvider} or
+ * -Dctu.ssl.provider=JDK|OPENSSL.
+ *
+ * Every context keeps a TLS session cache, so a client that reconnects to the same host and port resumes its session
+ * instead of doing a full handshake. Servers behind one gateway can share session ticket keys with
+ * {@link #setTicketSecrets}; this needs the OpenSSL provider, the JDK provider keeps its ticket keys per context.
+ *
+ * @author Fentus
+ */
+public class SslContextCache {
+	private static final ConcurrentHashMap<String, Entry> CACHE = new ConcurrentHashMap<>();
+
+	private static final int DEFAULT_SESSION_CACHE_SIZE = 8192;
+	private static final long DEFAULT_SESSION_TIMEOUT = 3600;
+
+	private static volatile SslProvider defaultProvider;
+	private static volatile int sessionCacheSize = DEFAULT_SESSION_CACHE_SIZE;
+	private static volatile long sessionTimeout = DEFAULT_SESSION_TIMEOUT;
+	private static volatile OpenSslSessionTicketKey[] ticketKeys;
+
+	private SslContextCache() {
+	}
+
+	/**
+	 * The provider used when none is given: the one set with {@link #setDefaultProvider}, then -Dctu.ssl.provider, then OpenSSL if available.
+	 */
+	public static SslProvider getDefaultProvider() {
+		SslProvider provider = defaultProvider;
+
+		if (provider == null) {
+			provider = detectProvider();
+			defaultProvider = provider;
+		}
+
+		return provider;
+	}
+
+	/**
+	 * Sets the provider for contexts built after this call. Providers that are not available are ignored.
+	 */
+	public static void setDefaultProvider(SslProvider provider) {
+		if (isAvailable(provider)) {
+			defaultProvider = provider;
+		} else {
+			Log.warn("TLS provider " + provider + " is not available, keeping " + getDefaultProvider());
+		}
+	}
+
+	public static boolean isAvailable(SslProvider provider) {
+		if (provider == SslProvider.JDK) {
+			return true;
+		}
+
+		try {
+			// Everything we build is TLS 1.3 only.
+			return SslProvider.isTlsv13Supported(provider);
+		} catch (Throwable t) {
+			return false;
+		}
+	}
+
+	/**
+	 * Sizes the TLS session caches of contexts built after this call. Drops the cached contexts so the next lookup picks the settings up.
+	 *
+	 * @param size           maximum cached sessions per context
+	 * @param timeoutSeconds how long a session (and a ticket issued for it) can be resumed
+	 */
+	public static void setSessionCache(int size, long timeoutSeconds) {
+		sessionCacheSize = size;
+		sessionTimeout = timeoutSeconds;
+		clear();
+	}
+
+	/**
+	 * Derives session ticket keys from shared secrets, so a ticket issued by one server is accepted by every server configured with the same secrets. The first secret encrypts new tickets, the others are only accepted, which allows rotating secrets without dropping resumable sessions.
+	 *
+	 * Only applies to server contexts built with the OpenSSL provider.
+	 */
+	public static void setTicketSecrets(String... secrets) {
+		OpenSslSessionTicketKey[] keys = new OpenSslSessionTicketKey[secrets.length];
+		for (int i = 0; i < secrets.length; i++) {
+			keys[i] = new OpenSslSessionTicketKey(derive(secrets[i], "name"), derive(secrets[i], "hmac"), derive(secrets[i], "aes"));
+		}
+		ticketKeys = keys;
+
+		// Rotate the keys of contexts that are already serving.
+		for (Entry entry : CACHE.values()) {
+			applyTicketKeys(entry.context);
+		}
+	}
+
+	/**
+	 * Returns the server context for a certificate chain and private key, built with the default provider.
+	 */
+	public static SslContext server(File certificate, File privateKey) throws SSLException {
+		return server(certificate, privateKey, getDefaultProvider());
+	}
+
+	public static SslContext server(File certificate, File privateKey, SslProvider provider) throws SSLException {
+		return server(certificate, privateKey, provider, null);
+	}
+
+	/**
+	 * @param cipherSuites TLS 1.3 cipher suites to allow, e.g. TLS_AES_128_GCM_SHA256 for links between trusted servers, or null for the provider's defaults
+	 */
+	public static SslContext server(File certificate, File privateKey, SslProvider provider, List<String> cipherSuites) throws SSLException {
+		String key = "server|" + provider + "|" + cipherSuites + "|" + certificate.getAbsolutePath() + "|" + privateKey.getAbsolutePath();
+
+		// @formatter:off
+		return lookup(key, stamp(certificate, privateKey), () -> SslContextBuilder
+			.forServer(certificate, privateKey)
+			.sslProvider(provider)
+			.protocols("TLSv1.3")
+			.ciphers(cipherSuites)
+			.sessionCacheSize(sessionCacheSize)
+			.sessionTimeout(sessionTimeout)
+			.build());
+		// @formatter:on
+	}
+
+	/**
+	 * Returns the client context that trusts exactly the given (pinned) server certificate, built with the default provider.
+	 */
+	public static SslContext client(File trustedCertificate) throws SSLException {
+		return client(trustedCertificate, getDefaultProvider());
+	}
+
+	public static SslContext client(File trustedCertificate, SslProvider provider) throws SSLException {
+		return client(trustedCertificate, provider, null);
+	}
+
+	/**
+	 * @param cipherSuites TLS 1.3 cipher suites to offer, or null for the provider's defaults. The server picks from the offered suites, so restricting the client is enough to select a cipher.
+	 */
+	public static SslContext client(File trustedCertificate, SslProvider provider, List<String> cipherSuites) throws SSLException {
+		String key = "client|" + provider + "|" + cipherSuites + "|" + trustedCertificate.getAbsolutePath();
+
+		// @formatter:off
+		return lookup(key, stamp(trustedCertificate), () -> SslContextBuilder
+			.forClient()
+			.sslProvider(provider)
+			.protocols("TLSv1.3")
+			.trustManager(trustedCertificate)
+			.ciphers(cipherSuites)
+			.sessionCacheSize(sessionCacheSize)
+			.sessionTimeout(sessionTimeout)
+			.build());
+		// @formatter:on
+	}
+
+	/**
+	 * Drops every cached context, the next lookup rebuilds from disk.
+	 */
+	public static void clear() {
+		CACHE.clear();
+	}
+
+	private static SslProvider detectProvider() {
+		String forced = System.getProperty("ctu.ssl.provider");
+
+		if (forced != null) {
+			try {
+				SslProvider provider = SslProvider.valueOf(forced.trim().toUpperCase());
+
+				if (isAvailable(provider)) {
+					return provider;
+				}
+				Log.warn("TLS provider " + provider + " is not available, falling back");
+			} catch (IllegalArgumentException e) {
+				Log.warn("Unknown TLS provider " + forced + ", falling back");
+			}
+		}
+
+		return isAvailable(SslProvider.OPENSSL) ? SslProvider.OPENSSL : SslProvider.JDK;
+	}
+
+	private static SslContext lookup(String key, long[] stamp, Builder builder) throws SSLException {
+		Entry entry = CACHE.get(key);
+		if (entry != null && Arrays.equals(entry.stamp, stamp)) {
+			return entry.context;
+		}
+
+		// Only one thread builds, a reconnect storm would otherwise parse the same files once per connection.
+		synchronized (SslContextCache.class) {
+			entry = CACHE.get(key);
+			if (entry != null && Arrays.equals(entry.stamp, stamp)) {
+				return entry.context;
+			}
+
+			SslContext context = builder.build();
+			applyTicketKeys(context);
+			CACHE.put(key, new Entry(stamp, context));
+			return context;
+		}
+	}
+
+	private static void applyTicketKeys(SslContext context) {
+		OpenSslSessionTicketKey[] keys = ticketKeys;
+
+		if (keys != null && context.isServer() && context.sessionContext() instanceof OpenSslSessionContext) {
+			((OpenSslSessionContext) context.sessionContext()).setTicketKeys(keys);
+		}
+	}
+
+	/**
+	 * 16 bytes of HMAC-SHA256(secret, label), one ticket key component.
+	 */
+	private static byte[] derive(String secret, String label) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+			return Arrays.copyOf(mac.doFinal(("ctu-ticket-" + label).getBytes(StandardCharsets.UTF_8)), 16);
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			throw new RuntimeException("Failed to derive ticket key", e);
+		}
+	}
+
+	private static long[] stamp(File... files) {
+		long[] stamp = new long[files.length * 2];
+		for (int i = 0; i < files.length; i++) {
+			stamp[i * 2] = files[i].lastModified();
+			stamp[i * 2 + 1] = files[i].length();
+		}
+		return stamp;
+	}
+
+	private interface Builder {
+		SslContext build() throws SSLException;
+	}
+
+	private static final class Entry {
+		private final long[] stamp;
+		private final SslContext context;
+
+		Entry(long[] stamp, SslContext context) {
+			this.stamp = stamp;
+			this.context = context;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package ctu.core.server;
+
+import java.util.Arrays;
+
+/**
+ * @author     Fentus
+ *
+ *             A named set of connections (party, guild, zone chat...) that packets can be published to.
+ *
+ *             Membership is a copy-on-write array: joins and leaves copy it, publishing iterates it without locking. An idle group is just this object and its array.
+ *
+ * @param  <T>
+ */
+public final class ConnectionGroup<T> {
+	private final String name;
+
+	private volatile ServerConnectionHandler<T>[] members = ServerConnectionHandler.newArray(0);
+
+	ConnectionGroup(String name) {
+		this.name = name;
+	}
+
+	synchronized boolean add(ServerConnectionHandler<T> handler) {
+		ServerConnectionHandler<T>[] current = members;
+
+		for (ServerConnectionHandler<T> member : current) {
+			if (member == handler) {
+				return false;
+			}
+		}
+
+		ServerConnectionHandler<T>[] next = Arrays.copyOf(current, current.length + 1);
+		next[current.length] = handler;
+		members = next;
+		return true;
+	}
+
+	synchronized boolean remove(ServerConnectionHandler<T> handler) {
+		ServerConnectionHandler<T>[] current = members;
+
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == handler) {
+				ServerConnectionHandler<T>[] next = Arrays.copyOf(current, current.length - 1);
+				System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+				members = next;
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the current members. The array is shared, do not modify it.
+	 */
+	public ServerConnectionHandler<T>[] getMembers() {
+		return members;
+	}
+
+	public boolean contains(long connectionId) {
+		for (ServerConnectionHandler<T> member : members) {
+			if (member.getConnectionID() == connectionId) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public int size() {
+		return members.length;
+	}
+
+	public boolean isEmpty() {
+		return members.length == 0;
+	}
+}
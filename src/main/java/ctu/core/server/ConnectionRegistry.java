@@ -0,0 +1,196 @@
+package ctu.core.server;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * @author     Fentus
+ *
+ *             Dense slot table holding the server's connections and the shard each one belongs to.
+ *
+ *             A connection ID packs the slot index in the low 32 bits and the slot's generation in the high 32 bits. Slots are reused after removal with a bumped generation, so a stale ID never resolves to the connection that took its slot over. IDs are therefore not sequential: the first connection gets 1L << 32, and -1 still means no ID. This breaks callers that relied on the old sequential IDs starting at 0.
+ *
+ *             A slot whose generation reaches {@link Integer#MAX_VALUE} is retired instead of reused, so generations never wrap, IDs stay positive and no ID is ever handed out twice.
+ *
+ *             Notes: - Lookups are lock-free and do not box the ID. - Adds and removes are serialized on the registry; they only happen on connect and disconnect.
+ *
+ * @param  <T>
+ */
+public class ConnectionRegistry<T> {
+	/** Returned by {@link #getShard(long)} when the ID does not resolve to a live connection. */
+	public static final int NOT_FOUND = Integer.MIN_VALUE;
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private volatile Slots<T> slots = new Slots<>(INITIAL_CAPACITY);
+
+	// Guarded by this.
+	private int[] freeSlots = new int[64];
+	private int freeCount = 0;
+	private int nextSlot = 0;
+
+	private volatile int size = 0;
+
+	/**
+	 * Stores a connection in a free slot and returns its new ID.
+	 */
+	synchronized long add(ServerConnectionHandler<T> handler, int shardId) {
+		int slot;
+
+		if (freeCount > 0) {
+			slot = freeSlots[--freeCount];
+		} else {
+			slot = nextSlot++;
+
+			if (slot == slots.handlers.length()) {
+				slots = slots.grow(slot * 2);
+			}
+		}
+
+		Slots<T> s = slots;
+		int generation = s.generations[slot] + 1;
+		s.generations[slot] = generation;
+
+		long id = ((long) generation << 32) | slot;
+
+		s.handlers.set(slot, handler);
+		s.shards.set(slot, shardId);
+		s.ids.set(slot, id);
+
+		size++;
+
+		return id;
+	}
+
+	/**
+	 * The ID {@link #add} would hand out next.
+	 */
+	synchronized long peekNextId() {
+		int slot = freeCount > 0 ? freeSlots[freeCount - 1] : nextSlot;
+		Slots<T> s = slots;
+		int generation = (slot < s.generations.length ? s.generations[slot] : 0) + 1;
+
+		return ((long) generation << 32) | slot;
+	}
+
+	/**
+	 * Frees the connection's slot.
+	 *
+	 * @return the removed handler, or null if the ID is not live
+	 */
+	synchronized ServerConnectionHandler<T> remove(long id) {
+		Slots<T> s = slots;
+		int slot = slotOf(id);
+
+		if (slot < 0 || slot >= s.handlers.length() || s.ids.get(slot) != id) {
+			return null;
+		}
+
+		ServerConnectionHandler<T> handler = s.handlers.get(slot);
+
+		s.ids.set(slot, -1);
+		s.handlers.set(slot, null);
+		s.shards.set(slot, NOT_FOUND);
+
+		// Out of generations: reusing the slot would wrap and repeat old IDs.
+		if (s.generations[slot] != Integer.MAX_VALUE) {
+			if (freeCount == freeSlots.length) {
+				freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+			}
+			freeSlots[freeCount++] = slot;
+		}
+
+		size--;
+
+		return handler;
+	}
+
+	public ServerConnectionHandler<T> get(long id) {
+		Slots<T> s = slots;
+		int slot = slotOf(id);
+
+		if (slot < 0 || slot >= s.handlers.length() || s.ids.get(slot) != id) {
+			return null;
+		}
+
+		ServerConnectionHandler<T> handler = s.handlers.get(slot);
+
+		// Recheck so a concurrent remove/reuse of the slot is never observed as a hit.
+		return s.ids.get(slot) == id ? handler : null;
+	}
+
+	public int getShard(long id) {
+		Slots<T> s = slots;
+		int slot = slotOf(id);
+
+		if (slot < 0 || slot >= s.handlers.length() || s.ids.get(slot) != id) {
+			return NOT_FOUND;
+		}
+
+		int shardId = s.shards.get(slot);
+
+		return s.ids.get(slot) == id ? shardId : NOT_FOUND;
+	}
+
+	synchronized boolean setShard(long id, int shardId) {
+		Slots<T> s = slots;
+		int slot = slotOf(id);
+
+		if (slot < 0 || slot >= s.handlers.length() || s.ids.get(slot) != id) {
+			return false;
+		}
+
+		s.shards.set(slot, shardId);
+		return true;
+	}
+
+	/**
+	 * Number of live connections, O(1).
+	 */
+	public int size() {
+		return size;
+	}
+
+	public static int slotOf(long id) {
+		return (int) id;
+	}
+
+	public static int generationOf(long id) {
+		return (int) (id >>> 32);
+	}
+
+	private static final class Slots<T> {
+		private final AtomicReferenceArray<ServerConnectionHandler<T>> handlers;
+		private final AtomicLongArray ids;
+		private final AtomicIntegerArray shards;
+		// Only touched under the registry lock.
+		private final int[] generations;
+
+		Slots(int capacity) {
+			handlers = new AtomicReferenceArray<>(capacity);
+			ids = new AtomicLongArray(capacity);
+			shards = new AtomicIntegerArray(capacity);
+			generations = new int[capacity];
+
+			for (int i = 0; i < capacity; i++) {
+				ids.set(i, -1);
+				shards.set(i, NOT_FOUND);
+			}
+		}
+
+		Slots<T> grow(int capacity) {
+			Slots<T> grown = new Slots<>(capacity);
+
+			for (int i = 0; i < handlers.length(); i++) {
+				grown.handlers.set(i, handlers.get(i));
+				grown.ids.set(i, ids.get(i));
+				grown.shards.set(i, shards.get(i));
+				grown.generations[i] = generations[i];
+			}
+
+			return grown;
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package ctu.core.server;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author     Fentus
+ *
+ *             A set of connections keyed by connection ID: a dense member array, an index from registry slot to array position, and a versioned array snapshot for iteration. Backs the members of a shard and of each connection tag.
+ *
+ *             The index is an open-addressing table sized by the member count, so a set with a few members stays small however high the registry's slots go. Removes move the last member into the gap and shift colliding index entries back instead of leaving tombstones. Every change bumps the version. The snapshot is rebuilt on the first read after a change, so tick loops and broadcasts scan a flat array and repeated reads between changes cost nothing.
+ *
+ * @param  <T>
+ */
+class ConnectionSet<T> {
+	private static final ServerConnectionHandler<?>[] EMPTY = ServerConnectionHandler.newArray(0);
+
+	private static final int FREE = -1;
+
+	// Guarded by this. indexSlots[i] is a member's registry slot or FREE, indexPositions[i] its position in members.
+	private ServerConnectionHandler<T>[] members = ServerConnectionHandler.newArray(16);
+	private long[] memberIds = new long[16];
+	private int[] indexSlots = newIndex(16);
+	private int[] indexPositions = new int[16];
+	private int count = 0;
+
+	private final AtomicLong version = new AtomicLong();
+
+	@SuppressWarnings("unchecked")
+	private volatile Snapshot<T> snapshot = new Snapshot<>(0, (ServerConnectionHandler<T>[]) EMPTY);
+
+	synchronized void put(long connectionId, ServerConnectionHandler<T> handler) {
+		int slot = ConnectionRegistry.slotOf(connectionId);
+		int i = find(slot);
+		int position;
+
+		if (i >= 0) {
+			position = indexPositions[i];
+		} else {
+			if (count == members.length) {
+				members = Arrays.copyOf(members, count * 2);
+				memberIds = Arrays.copyOf(memberIds, count * 2);
+			}
+
+			// Keep the index at most half full so probes stay short.
+			if ((count + 1) * 2 > indexSlots.length) {
+				rehash(indexSlots.length * 2);
+			}
+
+			position = count++;
+			insert(slot, position);
+		}
+
+		members[position] = handler;
+		memberIds[position] = connectionId;
+		version.incrementAndGet();
+	}
+
+	synchronized ServerConnectionHandler<T> remove(long connectionId) {
+		int slot = ConnectionRegistry.slotOf(connectionId);
+		int i = find(slot);
+
+		if (i < 0 || memberIds[indexPositions[i]] != connectionId) {
+			return null;
+		}
+
+		int position = indexPositions[i];
+		ServerConnectionHandler<T> handler = members[position];
+
+		deleteAt(i);
+
+		// Move the last member into the gap so the array stays dense.
+		int last = --count;
+		if (position != last) {
+			members[position] = members[last];
+			memberIds[position] = memberIds[last];
+			indexPositions[find(ConnectionRegistry.slotOf(memberIds[position]))] = position;
+		}
+		members[last] = null;
+
+		version.incrementAndGet();
+		return handler;
+	}
+
+	synchronized ServerConnectionHandler<T> get(long connectionId) {
+		int i = find(ConnectionRegistry.slotOf(connectionId));
+
+		return i >= 0 && memberIds[indexPositions[i]] == connectionId ? members[indexPositions[i]] : null;
+	}
+
+	synchronized boolean contains(long connectionId) {
+		int i = find(ConnectionRegistry.slotOf(connectionId));
+
+		return i >= 0 && memberIds[indexPositions[i]] == connectionId;
+	}
+
+	/**
+	 * Copies the members into a map keyed by connection ID, for callers of the old map based API.
+	 */
+	synchronized ConcurrentHashMap<Long, ServerConnectionHandler<T>> toMap() {
+		ConcurrentHashMap<Long, ServerConnectionHandler<T>> map = new ConcurrentHashMap<>(Math.max(16, count * 2));
+
+		for (int i = 0; i < count; i++) {
+			map.put(memberIds[i], members[i]);
+		}
+
+		return map;
+	}
+
+	synchronized int size() {
+		return count;
+	}
+
+	long getVersion() {
+		return version.get();
+	}
+
+	/**
+	 * Returns the current handlers as an array. The array is shared and must not be modified.
+	 */
+	ServerConnectionHandler<T>[] snapshot() {
+		Snapshot<T> s = snapshot;
+		if (s.version == version.get()) {
+			return s.handlers;
+		}
+
+		synchronized (this) {
+			s = snapshot;
+			long v = version.get();
+
+			if (s.version != v) {
+				// Changes bump the version under this lock, so the copy matches v exactly.
+				ServerConnectionHandler<T>[] handlers = Arrays.copyOf(members, count);
+				s = new Snapshot<>(v, handlers);
+				snapshot = s;
+			}
+
+			return s.handlers;
+		}
+	}
+
+	private int find(int slot) {
+		int mask = indexSlots.length - 1;
+
+		for (int i = home(slot, mask);; i = (i + 1) & mask) {
+			int key = indexSlots[i];
+
+			if (key == slot) {
+				return i;
+			}
+			if (key == FREE) {
+				return -1;
+			}
+		}
+	}
+
+	private void insert(int slot, int position) {
+		int mask = indexSlots.length - 1;
+		int i = home(slot, mask);
+
+		while (indexSlots[i] != FREE) {
+			i = (i + 1) & mask;
+		}
+
+		indexSlots[i] = slot;
+		indexPositions[i] = position;
+	}
+
+	/**
+	 * Frees an index entry and shifts later entries of the same probe run back, so lookups never stop at a hole.
+	 */
+	private void deleteAt(int hole) {
+		int mask = indexSlots.length - 1;
+		indexSlots[hole] = FREE;
+
+		for (int i = (hole + 1) & mask; indexSlots[i] != FREE; i = (i + 1) & mask) {
+			int home = home(indexSlots[i], mask);
+
+			// The entry may move to the hole only if its home is not cyclically within (hole, i].
+			if (((i - home) & mask) >= ((i - hole) & mask)) {
+				indexSlots[hole] = indexSlots[i];
+				indexPositions[hole] = indexPositions[i];
+				indexSlots[i] = FREE;
+				hole = i;
+			}
+		}
+	}
+
+	private void rehash(int capacity) {
+		int[] oldSlots = indexSlots;
+		int[] oldPositions = indexPositions;
+
+		indexSlots = newIndex(capacity);
+		indexPositions = new int[capacity];
+
+		for (int i = 0; i < oldSlots.length; i++) {
+			if (oldSlots[i] != FREE) {
+				insert(oldSlots[i], oldPositions[i]);
+			}
+		}
+	}
+
+	private static int home(int slot, int mask) {
+		// Registry slots are dense small integers, spread them before masking.
+		int h = slot * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & mask;
+	}
+
+	private static int[] newIndex(int capacity) {
+		int[] index = new int[capacity];
+		Arrays.fill(index, FREE);
+		return index;
+	}
+
+	private static final class Snapshot<T> {
+		private final long version;
+		private final ServerConnectionHandler<T>[] handlers;
+
+		Snapshot(long version, ServerConnectionHandler<T>[] handlers) {
+			this.version = version;
+			this.handlers = handlers;
+		}
+	}
+}
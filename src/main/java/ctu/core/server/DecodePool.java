@@ -0,0 +1,104 @@
+package ctu.core.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ctu.core.logger.Log;
+
+/**
+ * @author     Fentus
+ *
+ *             Bounded thread pool used to decompress and unmarshal expensive packets off the Netty event loops.
+ *
+ *             Notes: - Each connection gets its own {@link Lane}, a serial view over the pool, so packets of one connection are still decoded and dispatched in the order they were read. - When the pool queue is full the decode runs on the calling event loop, which slows that connection down instead of dropping packets. - After shutdown, queued decodes are dropped and new ones run on the caller, so a lane never stays busy.
+ */
+public class DecodePool {
+	private final ThreadPoolExecutor executor;
+
+	public DecodePool(int threads, int queueCapacity) {
+		AtomicInteger count = new AtomicInteger();
+
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), r -> {
+			Thread t = new Thread(r);
+			t.setName("DecodePool-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	/**
+	 * Creates a new serial lane over this pool. One lane per connection.
+	 */
+	Lane newLane() {
+		return new Lane();
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public void shutdown() {
+		for (Runnable task : executor.shutdownNow()) {
+			if (task instanceof Lane) {
+				((Lane) task).discard();
+			}
+		}
+	}
+
+	/**
+	 * Runs submitted tasks one at a time, in submission order, on the pool threads.
+	 */
+	class Lane implements Executor, Runnable {
+		private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+		private final AtomicInteger pending = new AtomicInteger();
+
+		@Override
+		public void execute(Runnable task) {
+			tasks.offer(task);
+
+			// Only the submitter that takes pending from 0 schedules the drain.
+			if (pending.getAndIncrement() == 0) {
+				try {
+					executor.execute(this);
+				} catch (RejectedExecutionException e) {
+					// Queue full or pool shut down, this submitter owns the drain and runs it inline.
+					run();
+				}
+			}
+		}
+
+		/**
+		 * True when every submitted task has finished, so the caller may run the next one inline without reordering.
+		 */
+		boolean isIdle() {
+			return pending.get() == 0;
+		}
+
+		@Override
+		public void run() {
+			do {
+				Runnable task = tasks.poll();
+
+				try {
+					task.run();
+				} catch (Throwable t) {
+					Log.error("Decode task failed", t);
+				}
+			} while (pending.decrementAndGet() != 0);
+		}
+
+		/**
+		 * Drops the queued tasks of a drain that will never run, leaving the lane idle.
+		 */
+		void discard() {
+			do {
+				tasks.poll();
+			} while (pending.decrementAndGet() != 0);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+package ctu.core.server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+import ctu.core.logger.Log;
+import io.netty.channel.Channel;
+
+/**
+ * @author     Fentus
+ *
+ *             Bounded thread pool for the delegated tasks of TLS handshakes (certificate and key exchange work), so an accept storm does not stall the event loops that serve connections which are already up.
+ *
+ *             Notes: - When the queue is full, or after shutdown, the task is rejected and its channel closed, so the handshake fails instead of running on the event loop. Channels still waiting in the queue at shutdown are closed too. - Handshake durations are recorded from channel setup to handshake completion and include the time spent waiting in the queue.
+ */
+public class HandshakeExecutor implements Executor {
+	private final ThreadPoolExecutor executor;
+
+	private final LongAdder tasks = new LongAdder();
+	private final LongAdder taskNanos = new LongAdder();
+	private final LongAdder queueWaitNanos = new LongAdder();
+
+	private final LongAdder handshakes = new LongAdder();
+	private final LongAdder failedHandshakes = new LongAdder();
+	private final LongAdder handshakeNanos = new LongAdder();
+	private final LongAdder rejected = new LongAdder();
+	private final AtomicLong maxHandshakeNanos = new AtomicLong();
+
+	public HandshakeExecutor(int threads, int queueCapacity) {
+		AtomicInteger count = new AtomicInteger();
+
+		this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueCapacity), r -> {
+			Thread t = new Thread(r);
+			t.setName("HandshakeExecutor-" + count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		}, new ThreadPoolExecutor.AbortPolicy());
+	}
+
+	@Override
+	public void execute(Runnable task) {
+		execute(null, task);
+	}
+
+	/**
+	 * Returns an executor for the handshake of one channel. A rejected task closes the channel.
+	 */
+	Executor forChannel(Channel channel) {
+		return task -> execute(channel, task);
+	}
+
+	private void execute(Channel channel, Runnable task) {
+		try {
+			executor.execute(new Task(channel, task));
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+
+			if (channel != null) {
+				Log.debug("Handshake rejected, executor " + (executor.isShutdown() ? "shut down" : "full") + ": " + channel.remoteAddress());
+				channel.close();
+			}
+
+			throw e;
+		}
+	}
+
+	void recordHandshake(long nanos, boolean success) {
+		if (!success) {
+			failedHandshakes.increment();
+			return;
+		}
+
+		handshakes.increment();
+		handshakeNanos.add(nanos);
+		maxHandshakeNanos.accumulateAndGet(nanos, Math::max);
+	}
+
+	public int getQueueDepth() {
+		return executor.getQueue().size();
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public long getTaskCount() {
+		return tasks.sum();
+	}
+
+	public double getAverageTaskMillis() {
+		long count = tasks.sum();
+		return count == 0 ? 0 : taskNanos.sum() / 1_000_000.0 / count;
+	}
+
+	public double getAverageQueueWaitMillis() {
+		long count = tasks.sum();
+		return count == 0 ? 0 : queueWaitNanos.sum() / 1_000_000.0 / count;
+	}
+
+	public long getHandshakeCount() {
+		return handshakes.sum();
+	}
+
+	public long getFailedHandshakeCount() {
+		return failedHandshakes.sum();
+	}
+
+	public double getAverageHandshakeMillis() {
+		long count = handshakes.sum();
+		return count == 0 ? 0 : handshakeNanos.sum() / 1_000_000.0 / count;
+	}
+
+	public double getMaxHandshakeMillis() {
+		return maxHandshakeNanos.get() / 1_000_000.0;
+	}
+
+	/**
+	 * Number of handshake tasks rejected because the queue was full or the executor was shut down.
+	 */
+	public long getRejectedCount() {
+		return rejected.sum();
+	}
+
+	public void shutdown() {
+		for (Runnable task : executor.shutdownNow()) {
+			if (task instanceof Task && ((Task) task).channel != null) {
+				((Task) task).channel.close();
+			}
+		}
+	}
+
+	private final class Task implements Runnable {
+		private final Channel channel;
+		private final Runnable task;
+		private final long queued = System.nanoTime();
+
+		Task(Channel channel, Runnable task) {
+			this.channel = channel;
+			this.task = task;
+		}
+
+		@Override
+		public void run() {
+			long start = System.nanoTime();
+
+			try {
+				task.run();
+			} finally {
+				tasks.increment();
+				taskNanos.add(System.nanoTime() - start);
+				queueWaitNanos.add(start - queued);
+			}
+		}
+	}
+}
@@ -0,0 +1,27 @@
+package ctu.core.server;
+
+import ctu.core.abstracts.Packet;
+
+/**
+ * A packet received by the server together with the connection it arrived on, as published by {@link InboundPublisher}.
+ *
+ * @author     Fentus
+ * @param  <T>
+ */
+public final class InboundPacket<T> {
+	private final ServerConnectionHandler<T> connection;
+	private final Packet packet;
+
+	InboundPacket(ServerConnectionHandler<T> connection, Packet packet) {
+		this.connection = connection;
+		this.packet = packet;
+	}
+
+	public ServerConnectionHandler<T> getConnection() {
+		return connection;
+	}
+
+	public Packet getPacket() {
+		return packet;
+	}
+}
@@ -0,0 +1,248 @@
+package ctu.core.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ctu.core.abstracts.Packet;
+import ctu.core.logger.Log;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.util.AttributeKey;
+
+/**
+ * @author     Fentus
+ *
+ *             Publishes received packets to {@link Flow.Subscriber}s and pushes their demand back onto the sockets.
+ *
+ *             When a subscriber runs out of demand, autoRead is switched off on every channel that delivers to it, so unread data stays in the kernel and the client's TCP window. Once the subscriber requests more and its buffer has drained, autoRead is switched back on. A channel counts the subscriptions that paused it and only reads again when none of them is still out of demand.
+ *
+ *             Notes: - onNext is called from whichever thread delivers or requests (usually a Netty event loop), subscribers should hand work off instead of blocking. - Packets already read when a channel is paused are buffered per subscription. - Every signal goes through the same serialized drain, so onComplete follows the packets queued before the publisher was closed and is never concurrent with onNext.
+ *
+ * @param  <T>
+ */
+public class InboundPublisher<T> implements Flow.Publisher<InboundPacket<T>> {
+	/** Number of subscriptions and shard loops that currently pause a channel */
+	private static final AttributeKey<AtomicInteger> PAUSES = AttributeKey.valueOf(InboundPublisher.class, "pauses");
+
+	private final ServerConnectionHandler<T> connection;
+	private final CopyOnWriteArrayList<InboundSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+	/**
+	 * @param connection the only connection to publish, or null for every connection of the server
+	 */
+	InboundPublisher(ServerConnectionHandler<T> connection) {
+		this.connection = connection;
+	}
+
+	@Override
+	public void subscribe(Flow.Subscriber<? super InboundPacket<T>> subscriber) {
+		InboundSubscription subscription = new InboundSubscription(subscriber);
+		subscriptions.add(subscription);
+		subscriber.onSubscribe(subscription);
+	}
+
+	void offer(ServerConnectionHandler<T> handler, Packet packet) {
+		if (connection != null && connection != handler) {
+			return;
+		}
+
+		for (InboundSubscription subscription : subscriptions) {
+			subscription.offer(handler, new InboundPacket<>(handler, packet));
+		}
+	}
+
+	/**
+	 * Completes all subscribers once they have received the packets already queued for them, and resumes any channel they paused.
+	 */
+	void close() {
+		for (InboundSubscription subscription : subscriptions) {
+			subscription.complete();
+		}
+
+		subscriptions.clear();
+	}
+
+	/**
+	 * Switches autoRead off on the channel, counting this pause alongside those of other subscriptions and shard loops.
+	 */
+	static void pause(Channel channel) {
+		AtomicInteger pauses = pauses(channel);
+
+		// Locked so a concurrent resume can't switch autoRead on after this switched it off.
+		synchronized (pauses) {
+			if (pauses.incrementAndGet() == 1) {
+				channel.config().setAutoRead(false);
+			}
+		}
+	}
+
+	/**
+	 * Releases one pause, autoRead is switched back on once nothing pauses the channel anymore.
+	 */
+	static void resume(Channel channel) {
+		AtomicInteger pauses = pauses(channel);
+
+		synchronized (pauses) {
+			if (pauses.decrementAndGet() == 0) {
+				channel.config().setAutoRead(true);
+			}
+		}
+	}
+
+	private static AtomicInteger pauses(Channel channel) {
+		AtomicInteger pauses = channel.attr(PAUSES).get();
+
+		if (pauses == null) {
+			AtomicInteger created = new AtomicInteger();
+			pauses = channel.attr(PAUSES).setIfAbsent(created);
+
+			if (pauses == null) {
+				pauses = created;
+			}
+		}
+
+		return pauses;
+	}
+
+	private class InboundSubscription implements Flow.Subscription {
+		private final Flow.Subscriber<? super InboundPacket<T>> subscriber;
+		private final ConcurrentLinkedQueue<InboundPacket<T>> queue = new ConcurrentLinkedQueue<>();
+		private final Set<Channel> paused = ConcurrentHashMap.newKeySet();
+		private final AtomicLong requested = new AtomicLong();
+		private final AtomicInteger wip = new AtomicInteger();
+		private volatile boolean cancelled = false;
+		private volatile boolean completed = false;
+		private volatile Throwable error;
+		// Only touched inside drain(), which delivers every signal so they never overlap.
+		private boolean terminated = false;
+
+		InboundSubscription(Flow.Subscriber<? super InboundPacket<T>> subscriber) {
+			this.subscriber = subscriber;
+		}
+
+		void offer(ServerConnectionHandler<T> handler, InboundPacket<T> item) {
+			if (cancelled || completed) {
+				return;
+			}
+
+			queue.offer(item);
+			drain();
+
+			// Demand ran out: stop reading from this socket until the subscriber asks for more.
+			if (requested.get() == 0) {
+				ChannelHandlerContext ctx = handler.getCtx();
+
+				if (ctx != null && paused.add(ctx.channel())) {
+					pause(ctx.channel());
+				}
+
+				// Demand may have arrived, or the subscription ended, while pausing.
+				if (requested.get() > 0 || cancelled || completed) {
+					resumeAll();
+				}
+			}
+		}
+
+		@Override
+		public void request(long n) {
+			if (n <= 0) {
+				error = new IllegalArgumentException("Non-positive request: " + n);
+				cancel();
+				drain();
+				return;
+			}
+
+			requested.getAndUpdate(r -> (r + n < 0) ? Long.MAX_VALUE : r + n);
+			drain();
+
+			if (requested.get() > 0 && queue.isEmpty()) {
+				resumeAll();
+			}
+		}
+
+		@Override
+		public void cancel() {
+			cancelled = true;
+			subscriptions.remove(this);
+			queue.clear();
+			resumeAll();
+		}
+
+		/**
+		 * Stops accepting packets. onComplete follows from drain() once the queue is empty.
+		 */
+		void complete() {
+			completed = true;
+			resumeAll();
+			drain();
+		}
+
+		void resumeAll() {
+			for (Channel channel : paused) {
+				if (paused.remove(channel)) {
+					resume(channel);
+				}
+			}
+		}
+
+		private void drain() {
+			if (wip.getAndIncrement() != 0) {
+				return;
+			}
+
+			int missed = 1;
+
+			do {
+				if (terminated) {
+					return;
+				}
+
+				Throwable e = error;
+				if (e != null) {
+					terminated = true;
+					subscriber.onError(e);
+					return;
+				}
+
+				long r = requested.get();
+				long emitted = 0;
+
+				while (emitted != r && !cancelled) {
+					InboundPacket<T> item = queue.poll();
+
+					if (item == null) {
+						break;
+					}
+
+					try {
+						subscriber.onNext(item);
+					} catch (Throwable t) {
+						Log.error("Inbound subscriber failed", t);
+						cancel();
+						return;
+					}
+
+					emitted++;
+				}
+
+				if (emitted != 0 && r != Long.MAX_VALUE) {
+					requested.addAndGet(-emitted);
+				}
+
+				// Closed: complete once everything queued before that has been delivered.
+				if (completed && !cancelled && queue.isEmpty()) {
+					terminated = true;
+					subscriber.onComplete();
+					return;
+				}
+
+				missed = wip.addAndGet(-missed);
+			} while (missed != 0);
+		}
+	}
+}
@@ -1,39 +1,72 @@
 package ctu.core.server;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.spi.SelectorProvider;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
 import javax.net.ssl.SSLException;
 
 import ctu.core.abstracts.Connection;
+import ctu.core.abstracts.FrameCache;
 import ctu.core.abstracts.Packet;
+import ctu.core.abstracts.UdpSession;
 import ctu.core.interfaces.Listener;
+import ctu.core.interfaces.ShardTickHandler;
 import ctu.core.logger.Log;
+import ctu.core.security.LinkAuthHandler;
+import ctu.core.security.SslContextCache;
+import ctu.core.transport.NetworkResources;
+import ctu.core.transport.Transport;
+import io.netty.bootstrap.Bootstrap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoop;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollDomainSocketChannel;
+import io.netty.channel.epoll.EpollServerDomainSocketChannel;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.channel.socket.DatagramPacket;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.unix.DomainSocketAddress;
 import io.netty.handler.ssl.SslContext;
-import io.netty.handler.ssl.SslContextBuilder;
 import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.ssl.SslProvider;
 import io.netty.handler.timeout.ReadTimeoutHandler;
 import io.netty.handler.timeout.WriteTimeoutHandler;
+import io.netty.util.concurrent.EventExecutor;
 
 /**
  *
@@ -41,7 +74,7 @@ import io.netty.handler.timeout.WriteTimeoutHandler;
  *
  *             The Server class represents a server that listens for incoming client connections and handles them.
  *
- *             Change: - addListener(listener, name) registers a listener with a friendly name for logging/debug visibility. - Listener callbacks are dispatched using a dedicated Thread per listener.
+ *             Change: - addListener(listener, name) registers a listener with a friendly name for logging/debug visibility. - Listener callbacks are dispatched using a dedicated Thread per listener. - Breaking: connection IDs come from a generational slot registry ({@link ConnectionRegistry}) and are no longer sequential from 0, the first connection gets 1L << 32. - Breaking: {@link #getShardConnections(int)} returns a copy instead of the live shard map, changes to it no longer reach the shard and it does not follow later connects and disconnects.
  *
  *             Notes: - Each listener has a single worker thread that processes events sequentially (preserves order for that listener). - Slow listeners will not block Netty threads, but can build up their own queue. - Listener implementations must still be thread-safe with respect to shared state.
  *
@@ -49,29 +82,100 @@ import io.netty.handler.timeout.WriteTimeoutHandler;
  */
 public class Server<T> implements Runnable {
 
+	/** Default upper bound for the encoded-frame cache (bytes) */
+	public static final long DEFAULT_FRAME_CACHE_SIZE = 16 * 1024 * 1024;
+
+	/** Default number of packets a shard loop queues before it pauses reading */
+	public static final int DEFAULT_SHARD_INBOUND_CAPACITY = 8192;
+
 	/** Special shard ID for connections not yet assigned */
 	public static final int UNASSIGNED_SHARD = -1;
 
 	/** Shard ID -> connections in that shard */
-	private final ConcurrentHashMap<Integer, ConcurrentHashMap<Long, ServerConnectionHandler<T>>> shardedConnections = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<Integer, Shard<T>> shardedConnections = new ConcurrentHashMap<>();
+
+	/** Connection ID -> handler and shard ID (slot table, also issues connection IDs) */
+	private final ConnectionRegistry<T> registry = new ConnectionRegistry<>();
+
+	/** User ID -> connection (maintained through Connection.setUserID and removeConnection) */
+	private final ConcurrentHashMap<Long, ServerConnectionHandler<T>> userIndex = new ConcurrentHashMap<>();
 
-	/** Connection ID -> Shard ID (reverse lookup for fast moves) */
-	private final ConcurrentHashMap<Long, Integer> connectionShardMap = new ConcurrentHashMap<>();
+	/** Group name -> members (groups are created on first join and dropped when empty) */
+	private final ConcurrentHashMap<String, ConnectionGroup<T>> groups = new ConcurrentHashMap<>();
+
+	/** Shard ID -> area-of-interest grid of connection positions */
+	private final ConcurrentHashMap<Integer, SpatialIndex<T>> spatialIndexes = new ConcurrentHashMap<>();
+	private volatile double areaOfInterestCellSize = 1000;
+
+	/** Tag name -> bit index, and per-bit member lists sized by their member count (at most 64 tags) */
+	private final ConcurrentHashMap<String, Integer> tagBits = new ConcurrentHashMap<>();
+	@SuppressWarnings("unchecked")
+	private final ConnectionSet<T>[] tagMembers = (ConnectionSet<T>[]) new ConnectionSet<?>[Long.SIZE];
 
 	/** System ID -> Shard ID mapping (configured at startup) */
 	private volatile Map<Long, Integer> systemToShardMap = Collections.emptyMap();
 
-	private final EventLoopGroup bossGroup = new NioEventLoopGroup();
-	private final EventLoopGroup workerGroup = new NioEventLoopGroup();
+	/** Socket transport and acceptor count, fixed once the event loop groups are created */
+	private volatile Transport transport = Transport.auto();
+	private volatile int acceptorCount = 1;
+
+	private EventLoopGroup bossGroup;
+	private EventLoopGroup workerGroup;
+
+	/** Epoll groups for the Unix socket listener, only when the main transport is not epoll */
+	private EventLoopGroup unixBossGroup;
+	private EventLoopGroup unixWorkerGroup;
+
+	/** Shared event loops, when set the server neither creates nor shuts down its own groups */
+	private NetworkResources resources;
+
+	/** Shard ID -> worker event loop the shard's channels are pinned to (when shard affinity is enabled) */
+	private final ConcurrentHashMap<Integer, EventLoop> shardEventLoops = new ConcurrentHashMap<>();
+	private volatile boolean shardAffinity = false;
 
 	private final int port;
 	private final int timeout;
 	private final Supplier<T> connectionObjectSupplier;
 	private final int marshalBufferSize;
 
-	private SslContext sslCtx;
+	private volatile boolean lazyDecoding = false;
+
+	/** Encoded frames of static/versioned packets, shared by all connections of this server */
+	private final FrameCache frameCache = new FrameCache(DEFAULT_FRAME_CACHE_SIZE);
+
+	private volatile DecodePool decodePool;
+	private volatile HandshakeExecutor handshakeExecutor;
+
+	/** Plaintext listener for bridge links from trusted servers, 0 when disabled */
+	private volatile String trustedLinkHost;
+	private volatile int trustedLinkPort = 0;
+	private volatile String trustedLinkSecret;
 
-	private int connectionId;
+	/** In-JVM address for co-located clients and bridges, null when disabled */
+	private volatile String localServerId;
+
+	/** Unix domain socket for processes on this host, null when disabled */
+	private volatile String unixSocketPath;
+	private volatile boolean unixSocketTls = true;
+	/** Socket file this instance bound, the only one it removes on shutdown */
+	private volatile String boundUnixSocketPath;
+
+	/** UDP port for {@link Connection#sendUDP(Packet)}, 0 when disabled */
+	private volatile int udpPort = 0;
+	private volatile Channel udpChannel;
+	/** UDP session ID -> connection */
+	private final ConcurrentHashMap<Long, ServerConnectionHandler<T>> udpSessions = new ConcurrentHashMap<>();
+	/** Link token announced by a server bridge -> its connection */
+	private final ConcurrentHashMap<Long, ServerConnectionHandler<T>> linkPeers = new ConcurrentHashMap<>();
+
+	private final Set<Class<?>> decodeOffloadedPackets = ConcurrentHashMap.newKeySet();
+	private volatile int decodeOffloadThreshold = Integer.MAX_VALUE;
+
+	/** Built on first use from server.crt/server.key, provider and cipher suites, unless one was passed in */
+	private volatile SslContext sslCtx;
+	private final boolean sslCtxInjected;
+	private volatile SslProvider sslProvider;
+	private volatile List<String> cipherSuites;
 
 	private final HashMap<Integer, Class<?>> clazzes = new HashMap<>();
 	private int key = 0;
@@ -83,6 +187,19 @@ public class Server<T> implements Runnable {
 	 */
 	private final CopyOnWriteArrayList<NamedListener<T>> listeners = new CopyOnWriteArrayList<>();
 
+	/** Shard tick loop handlers and runtime (null until started). */
+	private final CopyOnWriteArrayList<ShardTickHandler<T>> shardTickHandlers = new CopyOnWriteArrayList<>();
+	private volatile ShardRuntime<T> shardRuntime;
+
+	/** Shards whose packets go to their tick loop only, bypassing listeners and inbound publishers */
+	private final Set<Integer> exclusiveShards = ConcurrentHashMap.newKeySet();
+
+	/** Reactive inbound streams, fed alongside the listeners. */
+	private final CopyOnWriteArrayList<InboundPublisher<T>> inboundPublishers = new CopyOnWriteArrayList<>();
+
+	/** Connection ID -> publishers of that connection only, completed when the connection is removed */
+	private final ConcurrentHashMap<Long, CopyOnWriteArrayList<InboundPublisher<T>>> connectionPublishers = new ConcurrentHashMap<>();
+
 	/**
 	 * Constructs a new Server object with the given port number. It also initializes the SSL context with the specified SSL provider, protocols, and the server's certificate and private key for secure communication.
 	 *
@@ -101,29 +218,243 @@ public class Server<T> implements Runnable {
 	 * a raised colferSizeMax of 16384).
 	 */
 	public Server(int port, int timeout, Supplier<T> connectionObjectSupplier, int marshalBufferSize) {
+		this(port, timeout, connectionObjectSupplier, marshalBufferSize, null);
+	}
+
+	/**
+	 * Constructs a new Server with a prebuilt SSL context, e.g. one shared with other servers in the same JVM. {@link #setSslProvider(SslProvider)} and {@link #setCipherSuites(String...)} are then ignored.
+	 *
+	 * @param sslCtx the context, or null to build one from server.crt and server.key when first needed
+	 */
+	public Server(int port, int timeout, Supplier<T> connectionObjectSupplier, int marshalBufferSize, SslContext sslCtx) {
 		this.port = port;
 		this.timeout = timeout;
 		this.connectionObjectSupplier = connectionObjectSupplier;
 		this.marshalBufferSize = marshalBufferSize;
+		this.sslCtx = sslCtx;
+		this.sslCtxInjected = sslCtx != null;
+	}
 
-		try {
-			// @formatter:off
-			this.sslCtx = SslContextBuilder
-				.forServer(new File("server.crt"), new File("server.key"))
-				.sslProvider(SslProvider.JDK)
-				.protocols("TLSv1.3")
-				.build();
-			// @formatter:on
-		} catch (SSLException e) {
-			// Make SSL failures loud/early.
-			throw new RuntimeException(e);
+	/**
+	 * The SSL context, built from server.crt and server.key with the configured provider and cipher suites on first use.
+	 */
+	public SslContext getSslContext() {
+		SslContext context = sslCtx;
+		if (context != null) {
+			return context;
+		}
+
+		synchronized (this) {
+			if (sslCtx == null) {
+				SslProvider provider = sslProvider != null ? sslProvider : SslContextCache.getDefaultProvider();
+
+				try {
+					sslCtx = SslContextCache.server(new File("server.crt"), new File("server.key"), provider, cipherSuites);
+				} catch (SSLException e) {
+					// Make SSL failures loud.
+					throw new RuntimeException(e);
+				}
+			}
+			return sslCtx;
+		}
+	}
+
+	/**
+	 * Build the SSL context with a specific TLS provider instead of {@link SslContextCache#getDefaultProvider()}. Ignored when an SSL context was passed to the constructor. Must be called before the server starts.
+	 */
+	public synchronized void setSslProvider(SslProvider provider) {
+		if (sslCtxInjected) {
+			Log.warn("setSslProvider ignored: the server was given a prebuilt SSL context");
+			return;
+		}
+
+		if (!SslContextCache.isAvailable(provider)) {
+			Log.warn("TLS provider " + provider + " is not available");
+			return;
 		}
+
+		this.sslProvider = provider;
+		this.sslCtx = null;
 	}
 
 	private Server<T> getServer() {
 		return this;
 	}
 
+	/**
+	 * Restrict TLS to the given cipher suites, e.g. TLS_AES_128_GCM_SHA256. Combines with {@link #setSslProvider(SslProvider)}, ignored when an SSL context was passed to the constructor. Must be called before the server starts.
+	 */
+	public synchronized void setCipherSuites(String... cipherSuites) {
+		if (sslCtxInjected) {
+			Log.warn("setCipherSuites ignored: the server was given a prebuilt SSL context");
+			return;
+		}
+
+		this.cipherSuites = cipherSuites == null || cipherSuites.length == 0 ? null : List.of(cipherSuites);
+		this.sslCtx = null;
+	}
+
+	/**
+	 * Accept trusted bridge links on the loopback interface only, see {@link #enableTrustedLinks(String, int, String)}.
+	 */
+	public void enableTrustedLinks(int port, String secret) {
+		enableTrustedLinks("127.0.0.1", port, secret);
+	}
+
+	/**
+	 * Accept bridge links from other servers without TLS on a second port. Peers are authenticated with a shared-secret HMAC hello ({@link LinkAuthHandler}) and refused otherwise, but the traffic itself is neither encrypted nor bound to the hello: anyone on the path can read or take over the link afterwards. Bind it to an address only trusted servers can reach, such as loopback or a private network interface. Must be called before the server starts.
+	 *
+	 * @param host   local address of the plaintext listener
+	 * @param port   port of the plaintext listener
+	 * @param secret secret shared with the bridge peers
+	 */
+	public void enableTrustedLinks(String host, int port, String secret) {
+		if (host == null || host.isEmpty()) {
+			throw new IllegalArgumentException("Trusted links need a bind address");
+		}
+
+		if (secret == null || secret.isEmpty()) {
+			throw new IllegalArgumentException("Trusted links need a secret");
+		}
+
+		this.trustedLinkHost = host;
+		this.trustedLinkSecret = secret;
+		this.trustedLinkPort = port;
+	}
+
+	public int getTrustedLinkPort() {
+		return trustedLinkPort;
+	}
+
+	/**
+	 * Also accept in-JVM connections under a server ID, for clients and bridges running in the same process (see {@link ctu.core.client.Client#setLocalServer(String)}). Local connections skip sockets and TLS, frames are handed over in memory. Must be called before the server starts.
+	 */
+	public void bindLocal(String serverId) {
+		this.localServerId = serverId;
+	}
+
+	/**
+	 * Also accept connections on a Unix domain socket, so servers on the same host can bridge without the TCP/IP stack. Needs the epoll transport (Linux); when the server runs on another transport the socket gets its own epoll event loops. A stale socket file at the path is replaced, but the server refuses to start while another process is listening on it. Must be called before the server starts.
+	 *
+	 * @param path socket file, access is governed by its file permissions
+	 * @param tls  false to accept without TLS; peers then have to pass the HMAC hello if {@link #enableTrustedLinks(int, String)} configured a secret
+	 */
+	public void bindUnixSocket(String path, boolean tls) {
+		if (!Transport.EPOLL.isAvailable()) {
+			Log.warn("bindUnixSocket ignored: Unix domain sockets need the epoll transport, which is not available");
+			return;
+		}
+
+		this.unixSocketPath = path;
+		this.unixSocketTls = tls;
+	}
+
+	/**
+	 * Also listen for UDP datagrams, so connections can send real-time state with {@link Connection#sendUDP(Packet)}. Every TLS connection whose client asks for it then gets a UDP session whose key is handed to the client over TLS, older clients never see the session setup; trusted links, Unix sockets and in-JVM connections keep using TCP. Must be called before the server starts.
+	 */
+	public void enableUdp(int port) {
+		this.udpPort = port;
+	}
+
+	public int getUdpPort() {
+		return udpPort;
+	}
+
+	/**
+	 * The address a server bound with {@link #bindLocal(String)} listens on.
+	 */
+	public static LocalAddress localAddress(String serverId) {
+		return new LocalAddress("ctu-" + serverId);
+	}
+
+	/**
+	 * Sets up the pipeline of an accepted connection.
+	 *
+	 * @param tls        false for trusted links, plaintext Unix sockets and in-JVM channels
+	 * @param linkSecret without TLS, the secret the peer has to prove with the HMAC hello, or null to accept without one
+	 */
+	private void initChildChannel(Channel ch, boolean tls, String linkSecret) {
+		ChannelPipeline pipeline = ch.pipeline();
+
+		if (!tls) {
+			// The timeouts go first so they also cover the hello.
+			pipeline.addLast(new ReadTimeoutHandler(timeout));
+			pipeline.addLast(new WriteTimeoutHandler(timeout));
+
+			// In-JVM channels hand frames over whole, nothing to authenticate or split.
+			if (!(ch instanceof LocalChannel)) {
+				if (linkSecret != null) {
+					// Trusted link: a shared-secret hello instead of TLS.
+					pipeline.addLast(new LinkAuthHandler(true, linkSecret));
+				}
+
+				// Without TLS records, the stream may split or merge frames.
+				pipeline.addLast(Connection.newFrameDecoder());
+			}
+		} else {
+			// TLS
+			HandshakeExecutor handshakeExecutor = getHandshakeExecutor();
+			SslContext sslCtx = getSslContext();
+			SslHandler sslHandler = handshakeExecutor != null ? sslCtx.newHandler(ch.alloc(), handshakeExecutor.forChannel(ch)) : sslCtx.newHandler(ch.alloc());
+			pipeline.addLast(sslHandler);
+
+			// Log TLS handshake result with a clear message
+			String remoteAddr = String.valueOf(ch.remoteAddress());
+			long handshakeStart = System.nanoTime();
+			sslHandler.handshakeFuture().addListener(future -> {
+				if (handshakeExecutor != null) {
+					handshakeExecutor.recordHandshake(System.nanoTime() - handshakeStart, future.isSuccess());
+				}
+
+				if (future.isSuccess()) {
+					Log.debug("TLS OK: " + remoteAddr);
+				} else {
+					Throwable cause = future.cause();
+					String reason = describeTlsFailure(cause);
+					if (isExpectedConnectionFailure(cause)) {
+						Log.debug("TLS: " + remoteAddr + " - " + reason);
+					} else {
+						Log.error("TLS: " + remoteAddr + " - " + reason);
+					}
+				}
+			});
+
+			// Timeouts
+			pipeline.addLast(new ReadTimeoutHandler(timeout));
+			pipeline.addLast(new WriteTimeoutHandler(timeout));
+		}
+
+		// Connection object
+		T connectionObject = connectionObjectSupplier.get();
+		if (connectionObject == null) {
+			throw new IllegalStateException("Supplier provided null connectionObject.");
+		}
+
+		// Handler
+		ServerConnectionHandler<T> connectionHandler = new ServerConnectionHandler<>(getServer(), connectionObject);
+		connectionHandler.setMarshalBufferSize(marshalBufferSize);
+		connectionHandler.setLazyDecoding(lazyDecoding);
+
+		connectionHandler.setClazzes(clazzes);
+
+		pipeline.addLast(connectionHandler);
+
+		if (tls) {
+			// Confirm SSL is present or close.
+			pipeline.addLast(new ChannelInboundHandlerAdapter() {
+				@Override
+				public void channelActive(ChannelHandlerContext ctx) throws Exception {
+					if (ctx.pipeline().get(SslHandler.class) != null) {
+						Log.debug("Both client and server have SSL/TLS enabled");
+					} else {
+						Log.debug("Either client or server does not have SSL/TLS enabled, disconnecting both.");
+						ctx.close();
+					}
+				}
+			});
+		}
+	}
+
 	/**
 	 * Starts the server by running the Netty bootstrap on a dedicated thread.
 	 *
@@ -136,11 +467,152 @@ public class Server<T> implements Runnable {
 		t.start();
 	}
 
+	/**
+	 * Enable lazy decoding for connections accepted from now on. Listeners then receive {@link ctu.core.abstracts.LazyPacket} handles that are only unmarshalled when read, and re-sent from their original bytes when forwarded. instanceof checks in listeners stop matching, use {@link Packet#is(Class)} and {@link Packet#as(Class)} instead.
+	 */
+	public void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
+	public boolean isLazyDecoding() {
+		return lazyDecoding;
+	}
+
+	/**
+	 * Enable the decode pool. Packets selected with {@link #setDecodeOffload(Class, boolean)} or {@link #setDecodeOffloadThreshold(int)} are then inflated and unmarshalled on the pool instead of the Netty worker that read them. Must be called before connections arrive.
+	 *
+	 * @param threads       decode threads
+	 * @param queueCapacity pending decode tasks before the event loops decode inline again
+	 */
+	public void enableDecodePool(int threads, int queueCapacity) {
+		if (decodePool == null) {
+			decodePool = new DecodePool(threads, queueCapacity);
+		}
+	}
+
+	public DecodePool getDecodePool() {
+		return decodePool;
+	}
+
+	/**
+	 * Run the delegated tasks of TLS handshakes on a bounded pool instead of the event loop that accepted the connection. Must be called before connections arrive.
+	 *
+	 * @param threads       handshake threads
+	 * @param queueCapacity pending handshake tasks; beyond that a new task is rejected, its channel closed and {@link HandshakeExecutor#getRejectedCount()} incremented
+	 */
+	public void enableHandshakeExecutor(int threads, int queueCapacity) {
+		if (handshakeExecutor == null) {
+			handshakeExecutor = new HandshakeExecutor(threads, queueCapacity);
+		}
+	}
+
+	public HandshakeExecutor getHandshakeExecutor() {
+		return handshakeExecutor;
+	}
+
+	/**
+	 * Choose whether a packet type is decoded inline on the event loop (default) or on the decode pool.
+	 */
+	public void setDecodeOffload(Class<?> packetClass, boolean offload) {
+		if (offload) {
+			decodeOffloadedPackets.add(packetClass);
+		} else {
+			decodeOffloadedPackets.remove(packetClass);
+		}
+	}
+
+	/**
+	 * Offload any frame of at least this many bytes regardless of its type.
+	 */
+	public void setDecodeOffloadThreshold(int bytes) {
+		this.decodeOffloadThreshold = bytes;
+	}
+
+	boolean isDecodeOffloaded(Class<?> packetClass, int size) {
+		return size >= decodeOffloadThreshold || (packetClass != null && decodeOffloadedPackets.contains(packetClass));
+	}
+
+	/**
+	 * Connection IDs are assigned by the server when a connection becomes active, read them with
+	 * {@link Connection#getConnectionID()}. They are no longer sequential from 0: the slot index sits in the low 32 bits
+	 * and the slot's generation in the high 32 bits, so the first connection gets 1L << 32.
+	 *
+	 * @return the ID the next connection would get if nothing connects or disconnects first
+	 * @deprecated Nothing reserves the returned ID, another connection may take it.
+	 */
+	@Deprecated
 	public long getNextConnectionId() {
-		return connectionId++;
+		return registry.peekNextId();
+	}
+
+	/**
+	 * Select the socket transport (NIO, epoll or io_uring). Defaults to {@link Transport#auto()}, which picks epoll on Linux when the native library loads. Must be called before the server starts.
+	 */
+	public synchronized void setTransport(Transport transport) {
+		if (workerGroup != null || resources != null) {
+			Log.warn("setTransport ignored: event loops already created with " + this.transport);
+			return;
+		}
+
+		if (!transport.isAvailable()) {
+			Log.warn("Transport " + transport + " is not available, keeping " + this.transport);
+			return;
+		}
+
+		this.transport = transport;
 	}
 
+	public Transport getTransport() {
+		return transport;
+	}
+
+	/**
+	 * Bind this many acceptors to the port with SO_REUSEPORT so the kernel spreads incoming connections (and accept storms) across them. Only used on the epoll transport, other transports bind a single acceptor. Must be called before the server starts.
+	 */
+	public void setAcceptorCount(int acceptorCount) {
+		this.acceptorCount = Math.max(1, acceptorCount);
+	}
+
+	/**
+	 * Run on event loops shared with other Servers and Clients in this JVM instead of creating dedicated ones. The transport of the resources replaces {@link #setTransport(Transport)}, and the groups are left running when the server stops. Must be called before the server starts.
+	 */
+	public synchronized void setNetworkResources(NetworkResources resources) {
+		if (workerGroup != null) {
+			Log.warn("setNetworkResources ignored: event loops already created");
+			return;
+		}
+
+		this.resources = resources;
+		this.transport = resources.getTransport();
+	}
+
+	public synchronized NetworkResources getNetworkResources() {
+		return resources;
+	}
+
+	private synchronized EventLoopGroup getBossGroup() {
+		if (bossGroup == null) {
+			bossGroup = resources != null ? resources.getBossGroup() : transport.newEventLoopGroup(transport.supportsReusePort() ? acceptorCount : 1);
+		}
+		return bossGroup;
+	}
+
+	private synchronized EventLoopGroup getWorkerGroup() {
+		if (workerGroup == null) {
+			workerGroup = resources != null ? resources.getWorkerGroup() : transport.newEventLoopGroup(0);
+		}
+		return workerGroup;
+	}
+
+	/**
+	 * Register a packet class under the next key. Keys are one byte and {@link UdpSession#CONTROL_KEY} is reserved, so at most 255 classes fit.
+	 *
+	 * @throws IllegalStateException if every key is taken
+	 */
 	public void register(Class<?> clazz) {
+		if (key >= UdpSession.CONTROL_KEY) {
+			throw new IllegalStateException("Cannot register " + clazz.getSimpleName() + ": keys 0-" + (UdpSession.CONTROL_KEY - 1) + " are taken and " + UdpSession.CONTROL_KEY + " is reserved for UDP session setup");
+		}
 		clazzes.put(key++, clazz);
 	}
 
@@ -149,21 +621,426 @@ public class Server<T> implements Runnable {
 	}
 
 	public void broadcastTCP(Packet packet) {
-		for (ConcurrentHashMap<Long, ServerConnectionHandler<T>> shard : shardedConnections.values()) {
-			shard.forEach((_, handler) -> handler.sendTCP(packet));
+		for (Shard<T> shard : shardedConnections.values()) {
+			ServerConnectionHandler<T>[] handlers = shard.snapshot();
+			multicast(handlers, handlers.length, packet);
 		}
 	}
 
 	public void broadcastTCP(Packet packet, Predicate<Connection<T>> condition) {
-		for (ConcurrentHashMap<Long, ServerConnectionHandler<T>> shard : shardedConnections.values()) {
-			shard.forEach((_, handler) -> {
-				if (condition.test(handler)) {
-					handler.sendTCP(packet);
+		for (Shard<T> shard : shardedConnections.values()) {
+			multicast(shard.snapshot(), condition, packet);
+		}
+	}
+
+	/*
+	 * ========================= Frame cache =========================
+	 */
+
+	/**
+	 * Bound the encoded-frame cache to maxBytes, evicting the least recently used frames if it is over.
+	 */
+	public void setFrameCacheSize(long maxBytes) {
+		// Resized in place, so a send in progress can't refill a cache that was swapped out.
+		frameCache.resize(maxBytes);
+	}
+
+	public FrameCache getFrameCache() {
+		return frameCache;
+	}
+
+	/**
+	 * Send a static or versioned packet through the frame cache. The packet is only marshalled and compressed when (key, version) isn't cached yet.
+	 *
+	 * @return false if the connection is not found
+	 */
+	public boolean sendCached(long connectionId, Object key, long version, Packet packet) {
+		ServerConnectionHandler<T> handler = registry.get(connectionId);
+		if (handler == null) {
+			return false;
+		}
+
+		frameCache.send(handler, key, version, packet);
+		return true;
+	}
+
+	/*
+	 * ========================= Area of interest =========================
+	 */
+
+	/**
+	 * Set the grid cell size used by the area-of-interest indexes. Pick a value close to the usual broadcast radius. Only affects shards indexed after the call.
+	 */
+	public void setAreaOfInterestCellSize(double cellSize) {
+		this.areaOfInterestCellSize = cellSize;
+	}
+
+	/**
+	 * Record a connection's position in its shard's area-of-interest index.
+	 *
+	 * @return false if the connection is not found
+	 */
+	public boolean updatePosition(long connectionId, double x, double y, double z) {
+		ServerConnectionHandler<T> handler = registry.get(connectionId);
+		if (handler == null) {
+			return false;
+		}
+
+		// Under the handler's lock, so a move or removal clears the position after this update and never before it.
+		synchronized (handler) {
+			int shardId = registry.getShard(connectionId);
+			if (shardId == ConnectionRegistry.NOT_FOUND) {
+				return false;
+			}
+
+			SpatialIndex<T> index = spatialIndexes.computeIfAbsent(shardId, _ -> new SpatialIndex<>(areaOfInterestCellSize));
+
+			SpatialIndex<T> previous = handler.spatialIndex;
+			if (previous != null && previous != index) {
+				previous.remove(handler);
+			}
+
+			handler.spatialIndex = index;
+			index.update(handler, x, y, z);
+			return true;
+		}
+	}
+
+	/**
+	 * Remove a connection from the area-of-interest index.
+	 */
+	public void removePosition(long connectionId) {
+		ServerConnectionHandler<T> handler = registry.get(connectionId);
+		if (handler != null) {
+			clearPosition(handler);
+		}
+	}
+
+	private void clearPosition(ServerConnectionHandler<T> handler) {
+		synchronized (handler) {
+			SpatialIndex<T> index = handler.spatialIndex;
+			if (index != null) {
+				index.remove(handler);
+				handler.spatialIndex = null;
+			}
+		}
+	}
+
+	/**
+	 * Send a packet to every connection of a shard whose last position is within radius of (x, y, z). Only the grid cells overlapping the range are visited and the packet is encoded once.
+	 */
+	public void broadcastNear(int shardId, double x, double y, double z, double radius, Packet packet) {
+		SpatialIndex<T> index = spatialIndexes.get(shardId);
+		if (index != null) {
+			ServerConnectionHandler<T>[] handlers = index.query(x, y, z, radius);
+			multicast(handlers, handlers.length, packet);
+		}
+	}
+
+	/*
+	 * ========================= Tags =========================
+	 */
+
+	/**
+	 * Define a tag and return its bit index. Defining an existing tag returns its index.
+	 *
+	 * @throws IllegalStateException if all 64 tag bits are in use
+	 */
+	public synchronized int defineTag(String tag) {
+		Integer bit = tagBits.get(tag);
+		if (bit != null) {
+			return bit;
+		}
+
+		int next = tagBits.size();
+		if (next >= Long.SIZE) {
+			throw new IllegalStateException("Cannot define tag " + tag + ": all " + Long.SIZE + " tag bits are in use");
+		}
+
+		tagMembers[next] = new ConnectionSet<>();
+		tagBits.put(tag, next);
+		return next;
+	}
+
+	/**
+	 * Get a tag's bit index, or -1 if the tag is not defined.
+	 */
+	public int getTagBit(String tag) {
+		Integer bit = tagBits.get(tag);
+		return bit != null ? bit : -1;
+	}
+
+	/**
+	 * Tag a connection, defining the tag if needed.
+	 *
+	 * @return false if the connection is not found
+	 * @throws IllegalStateException if the tag is new and all 64 tag bits are in use
+	 */
+	public boolean addTag(long connectionId, String tag) {
+		ServerConnectionHandler<T> handler = registry.get(connectionId);
+		if (handler == null) {
+			return false;
+		}
+
+		int bit = defineTag(tag);
+		if (handler.setTag(bit, true)) {
+			tagMembers[bit].put(connectionId, handler);
+
+			// removeConnection may have read the tag bits before this one was set, undo the add.
+			if (registry.get(connectionId) != handler) {
+				handler.setTag(bit, false);
+				tagMembers[bit].remove(connectionId);
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Remove a tag from a connection.
+	 *
+	 * @return false if the connection is not found
+	 */
+	public boolean removeTag(long connectionId, String tag) {
+		ServerConnectionHandler<T> handler = registry.get(connectionId);
+		int bit = getTagBit(tag);
+		if (handler == null) {
+			return false;
+		}
+
+		if (bit >= 0 && handler.setTag(bit, false)) {
+			tagMembers[bit].remove(connectionId);
+		}
+		return true;
+	}
+
+	public boolean hasTag(long connectionId, String tag) {
+		ServerConnectionHandler<T> handler = registry.get(connectionId);
+		int bit = getTagBit(tag);
+		return handler != null && bit >= 0 && handler.hasTag(bit);
+	}
+
+	/**
+	 * Broadcast to the connections whose tags match a query. The query is evaluated on each connection's tag bits, and when it requires a tag only that tag's members are visited.
+	 */
+	public void broadcastTCP(Packet packet, TagQuery query) {
+		long[] clauses = query.compile(this::getTagBit);
+		if (clauses.length == 0) {
+			return; // Can't match anyone.
+		}
+
+		// Narrow to the smallest member list among the required tags.
+		ConnectionSet<T> smallest = null;
+		for (String tag : query.requiredTags()) {
+			int bit = getTagBit(tag);
+			if (bit < 0) {
+				return; // Required tag nobody can carry.
+			}
+			if (smallest == null || tagMembers[bit].size() < smallest.size()) {
+				smallest = tagMembers[bit];
+			}
+		}
+
+		if (smallest != null) {
+			multicast(smallest.snapshot(), clauses, packet);
+		} else {
+			for (Shard<T> shard : shardedConnections.values()) {
+				multicast(shard.snapshot(), clauses, packet);
+			}
+		}
+	}
+
+	/*
+	 * ========================= Groups API =========================
+	 */
+
+	/**
+	 * Add a connection to a group, creating the group if needed.
+	 *
+	 * @return true if the connection joined, false if it is not found or already a member
+	 */
+	public boolean joinGroup(String group, long connectionId) {
+		ServerConnectionHandler<T> handler = registry.get(connectionId);
+		if (handler == null) {
+			return false;
+		}
+
+		boolean[] joined = new boolean[1];
+		groups.compute(group, (name, g) -> {
+			if (g == null) {
+				g = new ConnectionGroup<>(name);
+			}
+			joined[0] = g.add(handler);
+			return g;
+		});
+
+		if (!joined[0]) {
+			return false;
+		}
+
+		handler.addGroup(group);
+
+		// removeConnection may have run meanwhile and missed this group, undo the join.
+		if (registry.get(connectionId) != handler) {
+			leaveGroup(group, handler);
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Remove a connection from a group. Empty groups are dropped.
+	 *
+	 * @return true if the connection was a member
+	 */
+	public boolean leaveGroup(String group, long connectionId) {
+		ServerConnectionHandler<T> handler = registry.get(connectionId);
+		return handler != null && leaveGroup(group, handler);
+	}
+
+	private boolean leaveGroup(String group, ServerConnectionHandler<T> handler) {
+		boolean[] left = new boolean[1];
+		groups.computeIfPresent(group, (_, g) -> {
+			left[0] = g.remove(handler);
+			return g.isEmpty() ? null : g;
+		});
+
+		handler.removeGroup(group);
+
+		return left[0];
+	}
+
+	/**
+	 * Send a packet to every member of a group. The packet is encoded once and the same frame is written to each member.
+	 */
+	public void publish(String group, Packet packet) {
+		ConnectionGroup<T> g = groups.get(group);
+		if (g != null) {
+			ServerConnectionHandler<T>[] members = g.getMembers();
+			multicast(members, members.length, packet);
+		}
+	}
+
+	/**
+	 * Get a group by name, or null if it has no members.
+	 */
+	public ConnectionGroup<T> getGroup(String group) {
+		return groups.get(group);
+	}
+
+	public int getGroupCount() {
+		return groups.size();
+	}
+
+	/**
+	 * Encode a packet once and write the frame to the first count handlers. Each handler receives a retained duplicate, so the bytes are shared.
+	 *
+	 * Recipients are grouped by the event loop of their channel and each loop gets a single task that writes to all of its channels and then flushes each once, so large broadcasts spread across the worker threads with one task per loop instead of one per connection.
+	 */
+	private void multicast(ServerConnectionHandler<T>[] handlers, int count, Packet packet) {
+		ByteBuf frame = null;
+		String packetName = Connection.getPacketName(packet);
+		IdentityHashMap<EventExecutor, ArrayList<ServerConnectionHandler<T>>> byLoop = new IdentityHashMap<>();
+
+		for (int i = 0; i < count; i++) {
+			ServerConnectionHandler<T> handler = handlers[i];
+			ChannelHandlerContext ctx = handler.getCtx();
+			if (handler.isInactive() || ctx == null) {
+				continue;
+			}
+
+			// All handlers share this server's packet registration, so any of them can encode.
+			if (frame == null) {
+				byte[] bytes = handler.encodeFrame(packet);
+				if (bytes == null) {
+					return;
 				}
-			});
+				frame = Unpooled.wrappedBuffer(bytes);
+			}
+
+			byLoop.computeIfAbsent(ctx.executor(), _ -> new ArrayList<>()).add(handler);
+		}
+
+		if (frame == null) {
+			return;
+		}
+
+		try {
+			for (Map.Entry<EventExecutor, ArrayList<ServerConnectionHandler<T>>> entry : byLoop.entrySet()) {
+				EventExecutor loop = entry.getKey();
+				ArrayList<ServerConnectionHandler<T>> recipients = entry.getValue();
+				ByteBuf loopFrame = frame.retain();
+
+				Runnable task = () -> {
+					try {
+						for (ServerConnectionHandler<T> handler : recipients) {
+							handler.writeFrame(loopFrame.retainedDuplicate(), packetName);
+						}
+
+						for (ServerConnectionHandler<T> handler : recipients) {
+							handler.flush();
+						}
+					} finally {
+						loopFrame.release();
+					}
+				};
+
+				if (loop.inEventLoop()) {
+					task.run();
+				} else {
+					try {
+						loop.execute(task);
+					} catch (RejectedExecutionException e) {
+						// The loop is shutting down, its channels are closing anyway.
+						loopFrame.release();
+						Log.debug("Multicast of " + packetName + " skipped " + recipients.size() + " connections on a terminated event loop");
+					}
+				}
+			}
+		} finally {
+			frame.release();
 		}
 	}
 
+	/**
+	 * Multicast to the handlers whose tag bits match a compiled tag query, see {@link TagQuery#compile}.
+	 */
+	private void multicast(ServerConnectionHandler<T>[] handlers, long[] clauses, Packet packet) {
+		ServerConnectionHandler<T>[] matches = ServerConnectionHandler.newArray(handlers.length);
+		int count = 0;
+
+		for (ServerConnectionHandler<T> handler : handlers) {
+			long bits = handler.getTagBits();
+
+			for (int i = 0; i < clauses.length; i += 2) {
+				long required = clauses[i];
+				if ((bits & required) == required && (bits & clauses[i + 1]) == 0) {
+					matches[count++] = handler;
+					break;
+				}
+			}
+		}
+
+		multicast(matches, count, packet);
+	}
+
+	/**
+	 * Multicast to the handlers matching a condition.
+	 */
+	private void multicast(ServerConnectionHandler<T>[] handlers, Predicate<Connection<T>> condition, Packet packet) {
+		ServerConnectionHandler<T>[] matches = ServerConnectionHandler.newArray(handlers.length);
+		int count = 0;
+
+		for (ServerConnectionHandler<T> handler : handlers) {
+			if (condition.test(handler)) {
+				matches[count++] = handler;
+			}
+		}
+
+		multicast(matches, count, packet);
+	}
+
 	/*
 	 * ========================= Sharding API =========================
 	 */
@@ -182,14 +1059,21 @@ public class Server<T> implements Runnable {
 				mapping.put(systemId, shardId);
 			}
 			// Pre-create shard maps
-			shardedConnections.putIfAbsent(shardId, new ConcurrentHashMap<>());
+			shardedConnections.putIfAbsent(shardId, new Shard<>());
 		}
 
 		// Create unassigned shard
-		shardedConnections.putIfAbsent(UNASSIGNED_SHARD, new ConcurrentHashMap<>());
+		shardedConnections.putIfAbsent(UNASSIGNED_SHARD, new Shard<>());
 
 		this.systemToShardMap = Collections.unmodifiableMap(mapping);
 
+		ShardRuntime<T> runtime = shardRuntime;
+		if (runtime != null) {
+			for (Integer shardId : systemsByThread.keySet()) {
+				runtime.startShard(shardId);
+			}
+		}
+
 		Log.debug("Configured " + systemsByThread.size() + " shards with " + mapping.size() + " system mappings");
 	}
 
@@ -202,13 +1086,18 @@ public class Server<T> implements Runnable {
 	}
 
 	/**
-	 * Add a new connection to a specific shard.
+	 * Register a new connection in a specific shard and return its connection ID.
 	 * Called during channelActive().
 	 */
-	void addConnectionToShard(long connectionId, ServerConnectionHandler<T> handler, int shardId) {
-		ConcurrentHashMap<Long, ServerConnectionHandler<T>> shard = shardedConnections.computeIfAbsent(shardId, _ -> new ConcurrentHashMap<>());
-		shard.put(connectionId, handler);
-		connectionShardMap.put(connectionId, shardId);
+	long addConnectionToShard(ServerConnectionHandler<T> handler, int shardId) {
+		Shard<T> shard = shardedConnections.computeIfAbsent(shardId, _ -> new Shard<>());
+
+		// Membership changes hold the registry lock so the registry and the shards never disagree.
+		synchronized (registry) {
+			long connectionId = registry.add(handler, shardId);
+			shard.put(connectionId, handler);
+			return connectionId;
+		}
 	}
 
 	/**
@@ -228,46 +1117,129 @@ public class Server<T> implements Runnable {
 	}
 
 	/**
-	 * Move a connection to a specific shard.
-	 * Uses copy-then-remove pattern: brief duplication is safer than brief absence.
-	 *
-	 * @param connectionId The connection ID
-	 * @param targetShardId The target shard ID
-	 * @return true if moved, false if connection not found
+	 * Move a connection to a specific shard.
+	 * Uses copy-then-remove pattern: brief duplication is safer than brief absence.
+	 *
+	 * @param connectionId The connection ID
+	 * @param targetShardId The target shard ID
+	 * @return true if moved, false if connection not found
+	 */
+	public boolean moveConnectionToShard(long connectionId, int targetShardId) {
+		Shard<T> targetShard = shardedConnections.computeIfAbsent(targetShardId, _ -> new Shard<>());
+		int currentShardId;
+		ServerConnectionHandler<T> handler;
+
+		synchronized (registry) {
+			currentShardId = registry.getShard(connectionId);
+			if (currentShardId == ConnectionRegistry.NOT_FOUND) {
+				return false;
+			}
+
+			if (currentShardId == targetShardId) {
+				return true; // Already in correct shard
+			}
+
+			Shard<T> currentShard = shardedConnections.get(currentShardId);
+			if (currentShard == null) {
+				return false;
+			}
+
+			handler = currentShard.get(connectionId);
+			if (handler == null) {
+				return false;
+			}
+
+			// Copy-then-remove pattern: add to new shard first
+			targetShard.put(connectionId, handler);
+
+			// Update reverse mapping
+			registry.setShard(connectionId, targetShardId);
+
+			// Remove from old shard
+			currentShard.remove(connectionId);
+		}
+
+		// Positions are per shard, the connection reports a new one in its new shard.
+		clearPosition(handler);
+
+		Log.debug("Moved connection " + connectionId + " from shard " + currentShardId + " to shard " + targetShardId);
+
+		if (shardAffinity && targetShardId != UNASSIGNED_SHARD) {
+			rebindToEventLoop(handler, getShardEventLoop(targetShardId));
+		}
+
+		return true;
+	}
+
+	/**
+	 * Pin each shard to one worker event loop. Connections moved into a shard have their channel deregistered from the loop that accepted it and registered on the shard's loop, and the shard runtime ticks on that same loop, so shard code writes to its connections without cross-thread task submission. Must be called before connections are moved.
+	 */
+	public void setShardAffinity(boolean shardAffinity) {
+		this.shardAffinity = shardAffinity;
+	}
+
+	public boolean isShardAffinity() {
+		return shardAffinity;
+	}
+
+	/**
+	 * Get the event loop a shard is pinned to, or null when shard affinity is disabled or for {@link #UNASSIGNED_SHARD}.
 	 */
-	public boolean moveConnectionToShard(long connectionId, int targetShardId) {
-		Integer currentShardId = connectionShardMap.get(connectionId);
-		if (currentShardId == null) {
-			return false;
+	public EventLoop getShardEventLoop(int shardId) {
+		if (!shardAffinity || shardId == UNASSIGNED_SHARD) {
+			return null;
 		}
 
-		if (currentShardId == targetShardId) {
-			return true; // Already in correct shard
-		}
+		return shardEventLoops.computeIfAbsent(shardId, _ -> getWorkerGroup().next());
+	}
 
-		ConcurrentHashMap<Long, ServerConnectionHandler<T>> currentShard = shardedConnections.get(currentShardId);
-		if (currentShard == null) {
-			return false;
+	/**
+	 * Move a channel onto another event loop. The channel stays open, only its registration changes.
+	 */
+	private void rebindToEventLoop(ServerConnectionHandler<T> handler, EventLoop target) {
+		if (handler.getCtx() == null) {
+			return;
 		}
 
-		ServerConnectionHandler<T> handler = currentShard.get(connectionId);
-		if (handler == null) {
-			return false;
+		Channel channel = handler.getCtx().channel();
+		if (channel.eventLoop() == target || !channel.isOpen()) {
+			return;
 		}
 
-		// Copy-then-remove pattern: add to new shard first
-		ConcurrentHashMap<Long, ServerConnectionHandler<T>> targetShard = shardedConnections.computeIfAbsent(targetShardId, _ -> new ConcurrentHashMap<>());
-		targetShard.put(connectionId, handler);
+		// Frames sent while the channel has no loop are queued and written from the new one.
+		handler.holdWrites();
 
-		// Update reverse mapping
-		connectionShardMap.put(connectionId, targetShardId);
+		channel.deregister().addListener(deregistered -> {
+			if (!deregistered.isSuccess()) {
+				Log.warn("Failed to deregister connection " + handler.getConnectionID() + " for shard move: " + deregistered.cause());
+				handler.releaseWrites();
+				return;
+			}
 
-		// Remove from old shard
-		currentShard.remove(connectionId);
+			target.register(channel).addListener(registered -> {
+				if (!registered.isSuccess()) {
+					Log.warn("Failed to register connection " + handler.getConnectionID() + " on shard event loop, closing: " + registered.cause());
+					channel.close();
+				} else {
+					resetTimeouts(channel.pipeline());
+				}
 
-		Log.debug("Moved connection " + connectionId + " from shard " + currentShardId + " to shard " + targetShardId);
+				handler.releaseWrites();
+			});
+		});
+	}
 
-		return true;
+	/**
+	 * Replaces the timeout handlers after a channel changed event loops, their scheduled checks stay on the old loop.
+	 */
+	private void resetTimeouts(ChannelPipeline pipeline) {
+		if (pipeline.get(ReadTimeoutHandler.class) != null) {
+			pipeline.replace(ReadTimeoutHandler.class, null, new ReadTimeoutHandler(timeout));
+		}
+
+		if (pipeline.get(WriteTimeoutHandler.class) != null) {
+			pipeline.replace(WriteTimeoutHandler.class, null, new WriteTimeoutHandler(timeout));
+		}
 	}
 
 	/**
@@ -277,28 +1249,87 @@ public class Server<T> implements Runnable {
 	 * @return The removed handler, or null if not found
 	 */
 	public ServerConnectionHandler<T> removeConnection(long connectionId) {
-		Integer shardId = connectionShardMap.remove(connectionId);
-		if (shardId == null) {
-			return null;
+		ServerConnectionHandler<T> handler;
+
+		// Under the registry lock, so a concurrent move can't put the connection back into a shard.
+		synchronized (registry) {
+			int shardId = registry.getShard(connectionId);
+			handler = registry.remove(connectionId);
+			if (handler == null) {
+				return null;
+			}
+
+			Shard<T> shard = shardedConnections.get(shardId);
+			if (shard != null) {
+				shard.remove(connectionId);
+			}
 		}
 
-		ConcurrentHashMap<Long, ServerConnectionHandler<T>> shard = shardedConnections.get(shardId);
-		if (shard == null) {
-			return null;
+		long userId = handler.getUserID();
+		if (userId != -1) {
+			userIndex.remove(userId, handler);
+		}
+
+		for (String group : handler.getGroups()) {
+			leaveGroup(group, handler);
+		}
+
+		clearPosition(handler);
+
+		closeConnectionPublishers(connectionId);
+
+		UdpSession udpSession = handler.getUdpSession();
+		if (udpSession != null) {
+			udpSessions.remove(udpSession.getSessionId(), handler);
 		}
 
-		return shard.remove(connectionId);
+		long linkToken = handler.getLinkToken();
+		if (linkToken != 0) {
+			linkPeers.remove(linkToken, handler);
+		}
+
+		long bits = handler.getTagBits();
+		while (bits != 0) {
+			int bit = Long.numberOfTrailingZeros(bits);
+			tagMembers[bit].remove(connectionId);
+			bits &= bits - 1;
+		}
+
+		return handler;
 	}
 
 	/**
-	 * Get all connections in a specific shard for iteration.
-	 * Returns a direct reference to the shard map for performance-critical loops.
+	 * Get all connections in a specific shard.
+	 * Breaking: this used to return the live shard map. It now returns a copy keyed by connection ID, so changes to it
+	 * do not affect the shard and a held map does not see later connects and disconnects.
 	 *
 	 * @param shardId The shard ID
-	 * @return The shard's connection map (never null, may be empty)
+	 * @return A copy of the shard's connections (never null, may be empty)
+	 * @deprecated Shards no longer keep a map, this builds one on every call. Use {@link #getShardSnapshot(int)}.
 	 */
+	@Deprecated
 	public ConcurrentHashMap<Long, ServerConnectionHandler<T>> getShardConnections(int shardId) {
-		return shardedConnections.computeIfAbsent(shardId, _ -> new ConcurrentHashMap<>());
+		Shard<T> shard = shardedConnections.get(shardId);
+		return shard != null ? shard.toMap() : new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Get the connections of a shard as a flat array for tight iteration.
+	 * The array is a snapshot rebuilt only after the shard changes; it is shared, do not modify it.
+	 *
+	 * @param shardId The shard ID
+	 * @return The shard's handlers (never null, may be empty)
+	 */
+	public ServerConnectionHandler<T>[] getShardSnapshot(int shardId) {
+		return shardedConnections.computeIfAbsent(shardId, _ -> new Shard<>()).snapshot();
+	}
+
+	/**
+	 * Get the version of a shard's membership. It changes on every add, move and remove, callers can use it to detect changes between ticks.
+	 */
+	public long getShardVersion(int shardId) {
+		Shard<T> shard = shardedConnections.get(shardId);
+		return shard != null ? shard.getVersion() : 0;
 	}
 
 	/**
@@ -308,12 +1339,83 @@ public class Server<T> implements Runnable {
 	 * @return The connection handler, or null if not found
 	 */
 	public ServerConnectionHandler<T> getConnection(long connectionId) {
-		Integer shardId = connectionShardMap.get(connectionId);
-		if (shardId == null) {
-			return null;
+		return registry.get(connectionId);
+	}
+
+	/**
+	 * Get the shard ID of a connection, or {@link ConnectionRegistry#NOT_FOUND} if the connection is not found.
+	 */
+	public int getConnectionShard(long connectionId) {
+		return registry.getShard(connectionId);
+	}
+
+	/**
+	 * Update the user index after a connection's user ID changed.
+	 * Called from ServerConnectionHandler.setUserID().
+	 */
+	void indexUser(ServerConnectionHandler<T> handler, long previousUserId, long userId) {
+		if (previousUserId != -1) {
+			userIndex.remove(previousUserId, handler);
+		}
+
+		// Removed connections must not come back through a late setUserID.
+		if (userId == -1 || registry.get(handler.getConnectionID()) != handler) {
+			return;
+		}
+
+		ServerConnectionHandler<T> replaced = userIndex.put(userId, handler);
+		if (replaced != null && replaced != handler) {
+			Log.debug("User " + userId + " moved from connection " + replaced.getConnectionID() + " to " + handler.getConnectionID());
+		}
+
+		// removeConnection may have run between the check and the put.
+		if (registry.get(handler.getConnectionID()) != handler) {
+			userIndex.remove(userId, handler);
+		}
+	}
+
+	/**
+	 * Get the connection a user is logged in on.
+	 *
+	 * @param userId The user ID set with Connection.setUserID()
+	 * @return The connection handler, or null if the user has no connection
+	 */
+	public ServerConnectionHandler<T> getConnectionByUser(long userId) {
+		return userIndex.get(userId);
+	}
+
+	/**
+	 * Send a packet to each of the given users that has a connection.
+	 */
+	public void sendToUsers(long[] userIds, Packet packet) {
+		ServerConnectionHandler<T>[] handlers = ServerConnectionHandler.newArray(userIds.length);
+		int count = 0;
+
+		for (long userId : userIds) {
+			ServerConnectionHandler<T> handler = userIndex.get(userId);
+			if (handler != null) {
+				handlers[count++] = handler;
+			}
+		}
+
+		multicast(handlers, count, packet);
+	}
+
+	/**
+	 * Send a packet to each of the given users that has a connection.
+	 */
+	public void sendToUsers(Collection<Long> userIds, Packet packet) {
+		ServerConnectionHandler<T>[] handlers = ServerConnectionHandler.newArray(userIds.size());
+		int count = 0;
+
+		for (Long userId : userIds) {
+			ServerConnectionHandler<T> handler = userIndex.get(userId);
+			if (handler != null && count < handlers.length) {
+				handlers[count++] = handler;
+			}
 		}
-		ConcurrentHashMap<Long, ServerConnectionHandler<T>> shard = shardedConnections.get(shardId);
-		return shard != null ? shard.get(connectionId) : null;
+
+		multicast(handlers, count, packet);
 	}
 
 	/**
@@ -327,18 +1429,14 @@ public class Server<T> implements Runnable {
 	 * Get total connection count across all shards.
 	 */
 	public int getTotalConnectionCount() {
-		int count = 0;
-		for (ConcurrentHashMap<Long, ServerConnectionHandler<T>> shard : shardedConnections.values()) {
-			count += shard.size();
-		}
-		return count;
+		return registry.size();
 	}
 
 	/**
 	 * Get connection count for a specific shard.
 	 */
 	public int getShardConnectionCount(int shardId) {
-		ConcurrentHashMap<Long, ServerConnectionHandler<T>> shard = shardedConnections.get(shardId);
+		Shard<T> shard = shardedConnections.get(shardId);
 		return shard != null ? shard.size() : 0;
 	}
 
@@ -346,9 +1444,10 @@ public class Server<T> implements Runnable {
 	 * Broadcast to a specific shard.
 	 */
 	public void broadcastToShard(int shardId, Packet packet) {
-		ConcurrentHashMap<Long, ServerConnectionHandler<T>> shard = shardedConnections.get(shardId);
+		Shard<T> shard = shardedConnections.get(shardId);
 		if (shard != null) {
-			shard.forEach((_, handler) -> handler.sendTCP(packet));
+			ServerConnectionHandler<T>[] handlers = shard.snapshot();
+			multicast(handlers, handlers.length, packet);
 		}
 	}
 
@@ -356,16 +1455,78 @@ public class Server<T> implements Runnable {
 	 * Broadcast to a specific shard with a condition.
 	 */
 	public void broadcastToShard(int shardId, Packet packet, Predicate<Connection<T>> condition) {
-		ConcurrentHashMap<Long, ServerConnectionHandler<T>> shard = shardedConnections.get(shardId);
+		Shard<T> shard = shardedConnections.get(shardId);
 		if (shard != null) {
-			shard.forEach((_, handler) -> {
-				if (condition.test(handler)) {
-					handler.sendTCP(packet);
-				}
-			});
+			multicast(shard.snapshot(), condition, packet);
 		}
 	}
 
+	/**
+	 * Start one tick loop per shard with {@link #DEFAULT_SHARD_INBOUND_CAPACITY}.
+	 *
+	 * @see #startShardRuntime(int, int)
+	 */
+	public void startShardRuntime(int ticksPerSecond) {
+		startShardRuntime(ticksPerSecond, DEFAULT_SHARD_INBOUND_CAPACITY);
+	}
+
+	/**
+	 * Start one tick loop per shard. Each loop owns its shard: it delivers the packets received by the shard's connections, runs the {@link ShardTickHandler}s and flushes outbound writes once per tick. Listeners and {@link #inbound()} publishers keep receiving every packet as well, unless the shard was made exclusive with {@link #setShardInboundExclusive(int, boolean)}.
+	 *
+	 * Loops are started for the shards known now and for shards configured later with {@link #configureShards(Map)}.
+	 *
+	 * @param ticksPerSecond tick rate of every shard loop
+	 * @param capacity       packets a loop queues before it switches autoRead off on the connections that keep sending
+	 */
+	public synchronized void startShardRuntime(int ticksPerSecond, int capacity) {
+		if (shardRuntime != null) {
+			return;
+		}
+
+		ShardRuntime<T> runtime = new ShardRuntime<>(this, ticksPerSecond, capacity, shardTickHandlers);
+		for (Integer shardId : shardedConnections.keySet()) {
+			runtime.startShard(shardId);
+		}
+
+		shardRuntime = runtime;
+
+		Log.debug("Started shard runtime at " + ticksPerSecond + " ticks per second");
+	}
+
+	public synchronized void stopShardRuntime() {
+		if (shardRuntime != null) {
+			shardRuntime.shutdown();
+			shardRuntime = null;
+		}
+	}
+
+	public ShardRuntime<T> getShardRuntime() {
+		return shardRuntime;
+	}
+
+	/**
+	 * When exclusive, packets of the shard's connections go to its tick loop only and listeners and inbound publishers no longer see them. Has no effect while the shard has no loop.
+	 */
+	public void setShardInboundExclusive(int shardId, boolean exclusive) {
+		if (exclusive) {
+			exclusiveShards.add(shardId);
+		} else {
+			exclusiveShards.remove(shardId);
+		}
+	}
+
+	public boolean isShardInboundExclusive(int shardId) {
+		return exclusiveShards.contains(shardId);
+	}
+
+	public void addShardTickHandler(ShardTickHandler<T> handler) {
+		shardTickHandlers.add(Objects.requireNonNull(handler, "handler"));
+	}
+
+	public void removeShardTickHandler(ShardTickHandler<T> handler) {
+		shardTickHandlers.remove(handler);
+	}
+
 	/**
 	 * Register a listener with a friendly name.
 	 *
@@ -405,6 +1566,69 @@ public class Server<T> implements Runnable {
 		return out;
 	}
 
+	/**
+	 * Returns a publisher of every packet received by this server. Subscriber demand controls reading: when it runs out, autoRead is switched off on the delivering channels until more is requested.
+	 */
+	public Flow.Publisher<InboundPacket<T>> inbound() {
+		InboundPublisher<T> publisher = new InboundPublisher<>(null);
+		inboundPublishers.add(publisher);
+		return publisher;
+	}
+
+	/**
+	 * Returns a publisher of the packets received on a single connection, with the same demand-driven backpressure as {@link #inbound()}. Its subscribers are completed when the connection is removed.
+	 *
+	 * @return the publisher, or null if the connection is not found
+	 */
+	public Flow.Publisher<InboundPacket<T>> inbound(long connectionId) {
+		ServerConnectionHandler<T> connection = getConnection(connectionId);
+		if (connection == null) {
+			return null;
+		}
+
+		InboundPublisher<T> publisher = new InboundPublisher<>(connection);
+		connectionPublishers.computeIfAbsent(connectionId, _ -> new CopyOnWriteArrayList<>()).add(publisher);
+
+		// Removed meanwhile: removeConnection may already have closed the list.
+		if (getConnection(connectionId) != connection) {
+			closeConnectionPublishers(connectionId);
+			return null;
+		}
+
+		return publisher;
+	}
+
+	/**
+	 * Completes the publisher's subscribers and stops feeding it.
+	 */
+	public void removeInbound(Flow.Publisher<InboundPacket<T>> publisher) {
+		if (!(publisher instanceof InboundPublisher)) {
+			return;
+		}
+
+		@SuppressWarnings("unchecked")
+		InboundPublisher<T> p = (InboundPublisher<T>) publisher;
+
+		boolean removed = inboundPublishers.remove(p);
+
+		for (CopyOnWriteArrayList<InboundPublisher<T>> publishers : connectionPublishers.values()) {
+			removed |= publishers.remove(p);
+		}
+
+		if (removed) {
+			p.close();
+		}
+	}
+
+	private void closeConnectionPublishers(long connectionId) {
+		CopyOnWriteArrayList<InboundPublisher<T>> publishers = connectionPublishers.remove(connectionId);
+		if (publishers != null) {
+			for (InboundPublisher<T> publisher : publishers) {
+				publisher.close();
+			}
+		}
+	}
+
 	public void dispatchChannelActive(ServerConnectionHandler<T> connection) {
 		forEachListenerEnqueue(nl -> nl.listener.channelActive(connection), "channelActive");
 	}
@@ -418,7 +1642,27 @@ public class Server<T> implements Runnable {
 	}
 
 	public void dispatchChannelRead(ServerConnectionHandler<T> connection, Packet packet) {
+		// The shard's tick loop gets the packets of its connections, and only it when the shard is exclusive.
+		ShardRuntime<T> runtime = shardRuntime;
+		if (runtime != null) {
+			int shardId = registry.getShard(connection.getConnectionID());
+			if (shardId != ConnectionRegistry.NOT_FOUND && runtime.offer(shardId, connection, packet) && exclusiveShards.contains(shardId)) {
+				return;
+			}
+		}
+
 		forEachListenerEnqueue(nl -> nl.listener.channelRead(connection, packet), "channelRead");
+
+		for (InboundPublisher<T> publisher : inboundPublishers) {
+			publisher.offer(connection, packet);
+		}
+
+		CopyOnWriteArrayList<InboundPublisher<T>> publishers = connectionPublishers.get(connection.getConnectionID());
+		if (publishers != null) {
+			for (InboundPublisher<T> publisher : publishers) {
+				publisher.offer(connection, packet);
+			}
+		}
 	}
 
 	@FunctionalInterface
@@ -477,6 +1721,127 @@ public class Server<T> implements Runnable {
 		return cause.getClass().getSimpleName() + ": " + msg;
 	}
 
+	/**
+	 * Deletes a socket file nobody listens on anymore. Anything else at the path is left alone and fails the start: a live socket of another server, or a file that is not a socket.
+	 */
+	private static void removeStaleUnixSocket(String path) {
+		Path file = Path.of(path);
+
+		if (!Files.exists(file, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+
+		if (Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS) || Files.isDirectory(file, LinkOption.NOFOLLOW_LINKS)) {
+			throw new IllegalStateException("Unix socket path " + path + " exists and is not a socket");
+		}
+
+		try (var probe = SelectorProvider.provider().openSocketChannel(StandardProtocolFamily.UNIX)) {
+			probe.connect(UnixDomainSocketAddress.of(file));
+			throw new IllegalStateException("Unix socket " + path + " is in use by another process");
+		} catch (ConnectException e) {
+			// Refused: nobody is listening, the file is left over from a previous run.
+		} catch (IOException e) {
+			// Anything else (no permission, full backlog...) doesn't prove the socket is dead, leave it alone.
+			throw new IllegalStateException("Could not tell whether Unix socket " + path + " is in use", e);
+		}
+
+		try {
+			Files.deleteIfExists(file);
+			Log.debug("Removed stale Unix socket " + path);
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to remove stale Unix socket " + path, e);
+		}
+	}
+
+	/*
+	 * ========================= Bridge links =========================
+	 */
+
+	/**
+	 * Records the link token a server bridge announced on its connection, so packets it sends through its shared memory ring can be handed out through that connection. A later connection announcing the same token, e.g. the bridge after a reconnect, takes over. Runs on the connection's event loop.
+	 */
+	void registerLinkToken(ServerConnectionHandler<T> handler, long token) {
+		long previous = handler.getLinkToken();
+		if (token == 0 || token == previous) {
+			return;
+		}
+
+		if (previous != 0) {
+			linkPeers.remove(previous, handler);
+		}
+
+		handler.setLinkToken(token);
+		linkPeers.put(token, handler);
+
+		// removeConnection may have run meanwhile and missed this token.
+		if (registry.get(handler.getConnectionID()) != handler) {
+			linkPeers.remove(token, handler);
+		}
+	}
+
+	/**
+	 * The connection on which a server bridge announced this link token, or null if no live connection did.
+	 */
+	public ServerConnectionHandler<T> getLinkPeer(long token) {
+		return token != 0 ? linkPeers.get(token) : null;
+	}
+
+	/*
+	 * ========================= UDP =========================
+	 */
+
+	/**
+	 * Creates the UDP session of a connection whose client asked for one and sends it the key. Only done over TLS, the key must never travel in the clear, and once per connection. Runs on the connection's event loop.
+	 */
+	void openUdpSession(ServerConnectionHandler<T> handler) {
+		Channel channel = udpChannel;
+		ChannelHandlerContext ctx = handler.getCtx();
+		if (channel == null || handler.getUdpSession() != null || !(ctx.channel() instanceof SocketChannel) || ctx.pipeline().get(SslHandler.class) == null) {
+			return;
+		}
+
+		// Session IDs are random, draw again on the unlikely collision.
+		UdpSession session;
+		do {
+			session = UdpSession.newServerSession(channel);
+			handler.setUdpSession(session);
+		} while (session.getSessionId() == 0 || udpSessions.putIfAbsent(session.getSessionId(), handler) != null);
+
+		// removeConnection may have run meanwhile and missed this session.
+		if (registry.get(handler.getConnectionID()) != handler) {
+			udpSessions.remove(session.getSessionId(), handler);
+			return;
+		}
+
+		handler.sendFrame(Unpooled.wrappedBuffer(session.toControlFrame(udpPort)), UdpSession.class.getSimpleName());
+	}
+
+	private void receiveDatagram(DatagramPacket datagram) {
+		long sessionId = UdpSession.peekSessionId(datagram.content());
+		ServerConnectionHandler<T> handler = sessionId == 0 ? null : udpSessions.get(sessionId);
+
+		if (handler == null || handler.isInactive()) {
+			return;
+		}
+
+		UdpSession session = handler.getUdpSession();
+		byte[] frame = session.open(datagram.content());
+
+		if (frame == null) {
+			return;
+		}
+
+		// Clients may move behind NAT, follow them once the new address has proven itself.
+		if (session.observeSender(datagram.sender())) {
+			Log.debug("UDP session " + sessionId + " bound to " + datagram.sender());
+		}
+
+		// Empty frames only keep the address fresh.
+		if (frame.length > 0) {
+			handler.receiveDatagram(frame);
+		}
+	}
+
 	/*
 	 * ========================= Netty bootstrap =========================
 	 */
@@ -484,70 +1849,106 @@ public class Server<T> implements Runnable {
 	@Override
 	public void run() {
 		try {
+			// Fails before anything is bound when the certificate or key can't be loaded.
+			getSslContext();
+
+			List<ChannelFuture> futures = new ArrayList<>();
+
+			// Bound first, so connections accepted from now on get a UDP session.
+			int udp = udpPort;
+			if (udp > 0) {
+				Bootstrap datagram = new Bootstrap().group(getWorkerGroup()).channel(transport.datagramChannelClass()).handler(new SimpleChannelInboundHandler<DatagramPacket>() {
+					@Override
+					protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception {
+						receiveDatagram(packet);
+					}
+				});
+
+				ChannelFuture udpFuture = datagram.bind(udp).sync();
+				udpChannel = udpFuture.channel();
+				futures.add(udpFuture);
+				Log.debug("UDP listener started on port " + udp);
+			}
+
 			ServerBootstrap bootstrap = new ServerBootstrap();
 
-			bootstrap.group(bossGroup, workerGroup).channel(NioServerSocketChannel.class).childHandler(new ChannelInitializer<SocketChannel>() {
+			bootstrap.group(getBossGroup(), getWorkerGroup()).channel(transport.serverChannelClass()).childHandler(new ChannelInitializer<SocketChannel>() {
 				@Override
 				public void initChannel(SocketChannel ch) throws Exception {
-					ChannelPipeline pipeline = ch.pipeline();
-
-					// TLS
-					SslHandler sslHandler = sslCtx.newHandler(ch.alloc());
-					pipeline.addLast(sslHandler);
-
-					// Log TLS handshake result with a clear message
-					String remoteAddr = ch.remoteAddress().toString();
-					sslHandler.handshakeFuture().addListener(future -> {
-						if (future.isSuccess()) {
-							Log.debug("TLS OK: " + remoteAddr);
-						} else {
-							Throwable cause = future.cause();
-							String reason = describeTlsFailure(cause);
-							if (isExpectedConnectionFailure(cause)) {
-								Log.debug("TLS: " + remoteAddr + " - " + reason);
-							} else {
-								Log.error("TLS: " + remoteAddr + " - " + reason);
-							}
-						}
-					});
+					initChildChannel(ch, true, null);
+				}
+			});
 
-					// Timeouts
-					pipeline.addLast(new ReadTimeoutHandler(timeout));
-					pipeline.addLast(new WriteTimeoutHandler(timeout));
+			int acceptors = transport.supportsReusePort() ? acceptorCount : 1;
+			if (acceptors > 1) {
+				bootstrap.option(EpollChannelOption.SO_REUSEPORT, true);
+			}
 
-					// Connection object
-					T connectionObject = connectionObjectSupplier.get();
-					if (connectionObject == null) {
-						throw new IllegalStateException("Supplier provided null connectionObject.");
+			// With SO_REUSEPORT each bind creates another listening socket on the same port.
+			for (int i = 0; i < acceptors; i++) {
+				futures.add(bootstrap.bind(port).sync());
+			}
+			Log.debug("Netty server started on port " + port + " (" + transport + ", " + acceptors + " acceptor" + (acceptors > 1 ? "s" : "") + ")");
+
+			String linkSecret = trustedLinkSecret;
+			if (trustedLinkPort > 0 && linkSecret != null) {
+				ServerBootstrap trusted = bootstrap.clone().childHandler(new ChannelInitializer<SocketChannel>() {
+					@Override
+					public void initChannel(SocketChannel ch) throws Exception {
+						initChildChannel(ch, false, linkSecret);
 					}
+				});
 
-					// Handler
-					ServerConnectionHandler<T> connectionHandler = new ServerConnectionHandler<>(getServer(), connectionObject);
-					connectionHandler.setMarshalBufferSize(marshalBufferSize);
+				// A single acceptor, and no other process may share the trusted port.
+				trusted.option(EpollChannelOption.SO_REUSEPORT, null);
 
-					connectionHandler.setClazzes(clazzes);
+				futures.add(trusted.bind(trustedLinkHost, trustedLinkPort).sync());
+				Log.debug("Trusted link listener started on " + trustedLinkHost + ":" + trustedLinkPort);
+			}
 
-					pipeline.addLast(connectionHandler);
+			String localId = localServerId;
+			if (localId != null) {
+				// Local channels run on any single threaded event loop, so they share the socket groups.
+				ServerBootstrap local = new ServerBootstrap().group(getBossGroup(), getWorkerGroup()).channel(LocalServerChannel.class).childHandler(new ChannelInitializer<LocalChannel>() {
+					@Override
+					public void initChannel(LocalChannel ch) throws Exception {
+						initChildChannel(ch, false, null);
+					}
+				});
 
-					// Confirm SSL is present or close.
-					pipeline.addLast(new ChannelInboundHandlerAdapter() {
-						@Override
-						public void channelActive(ChannelHandlerContext ctx) throws Exception {
-							if (ctx.pipeline().get(SslHandler.class) != null) {
-								Log.debug("Both client and server have SSL/TLS enabled");
-							} else {
-								Log.debug("Either client or server does not have SSL/TLS enabled, disconnecting both.");
-								ctx.close();
-							}
-						}
-					});
+				futures.add(local.bind(localAddress(localId)).sync());
+				Log.debug("Local listener started for " + localId);
+			}
+
+			String socketPath = unixSocketPath;
+			if (socketPath != null) {
+				boolean tls = unixSocketTls;
+				String secret = trustedLinkSecret;
+
+				// Domain socket channels only run on epoll loops.
+				if (transport != Transport.EPOLL) {
+					unixBossGroup = Transport.EPOLL.newEventLoopGroup(1);
+					unixWorkerGroup = Transport.EPOLL.newEventLoopGroup(0);
 				}
-			});
 
-			ChannelFuture future = bootstrap.bind(port).sync();
-			Log.debug("Netty server started on port " + port);
+				ServerBootstrap unix = new ServerBootstrap().group(unixBossGroup != null ? unixBossGroup : getBossGroup(), unixWorkerGroup != null ? unixWorkerGroup : getWorkerGroup()).channel(EpollServerDomainSocketChannel.class).childHandler(new ChannelInitializer<EpollDomainSocketChannel>() {
+					@Override
+					public void initChannel(EpollDomainSocketChannel ch) throws Exception {
+						initChildChannel(ch, tls, tls ? null : secret);
+					}
+				});
+
+				// A socket file left over from a previous run would fail the bind.
+				removeStaleUnixSocket(socketPath);
+
+				futures.add(unix.bind(new DomainSocketAddress(socketPath)).sync());
+				boundUnixSocketPath = socketPath;
+				Log.debug("Unix socket listener started on " + socketPath + (tls ? "" : " (plaintext)"));
+			}
 
-			future.channel().closeFuture().sync();
+			for (ChannelFuture future : futures) {
+				future.channel().closeFuture().sync();
+			}
 		} catch (InterruptedException e) {
 			Thread.currentThread().interrupt();
 		} finally {
@@ -556,8 +1957,48 @@ public class Server<T> implements Runnable {
 				nl.shutdown();
 			}
 
-			workerGroup.shutdownGracefully();
-			bossGroup.shutdownGracefully();
+			for (InboundPublisher<T> publisher : inboundPublishers) {
+				publisher.close();
+			}
+			inboundPublishers.clear();
+
+			for (Long connectionId : connectionPublishers.keySet()) {
+				closeConnectionPublishers(connectionId);
+			}
+
+			stopShardRuntime();
+
+			if (decodePool != null) {
+				decodePool.shutdown();
+			}
+
+			if (handshakeExecutor != null) {
+				handshakeExecutor.shutdown();
+			}
+
+			// Not closed with the event loops when they are shared.
+			if (udpChannel != null) {
+				udpChannel.close();
+				udpChannel = null;
+			}
+			udpSessions.clear();
+
+			if (unixWorkerGroup != null) {
+				unixWorkerGroup.shutdownGracefully();
+				unixBossGroup.shutdownGracefully();
+			}
+
+			String boundSocketPath = boundUnixSocketPath;
+			if (boundSocketPath != null) {
+				new File(boundSocketPath).delete();
+				boundUnixSocketPath = null;
+			}
+
+			// Shared groups belong to the NetworkResources owner.
+			if (getNetworkResources() == null) {
+				getWorkerGroup().shutdownGracefully();
+				getBossGroup().shutdownGracefully();
+			}
 		}
 	}
 }
@@ -1,7 +1,12 @@
 package ctu.core.server;
 
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import ctu.core.abstracts.Connection;
 import ctu.core.abstracts.Packet;
+import ctu.core.abstracts.UdpSession;
 import ctu.core.logger.Log;
 import ctu.core.packets.PacketPing;
 import io.netty.buffer.ByteBuf;
@@ -19,6 +24,21 @@ import io.netty.channel.ChannelHandlerContext;
 public class ServerConnectionHandler<T> extends Connection<T> {
 	private final Server<T> server;
 
+	// Serial lane over the server's decode pool, null when decode offload is disabled.
+	private DecodePool.Lane decodeLane;
+
+	// Names of the groups this connection joined, used to clean up membership on removal. Created on the first join.
+	private volatile Set<String> groups;
+
+	// Area-of-interest index currently holding this connection's position, if any.
+	volatile SpatialIndex<T> spatialIndex;
+
+	// Bitset of server tags (bit index from Server.defineTag), written under this handler's lock.
+	private volatile long tagBits = 0;
+
+	// Link token a server bridge announced on this connection, 0 if none. Written on the event loop only.
+	private volatile long linkToken = 0;
+
 	/**
 	 * Constructs a new ServerConnectionHandler with a given server and connectionObject.
 	 *
@@ -38,12 +58,23 @@ public class ServerConnectionHandler<T> extends Connection<T> {
 
 		super.channelActive(ctx);
 
-		long id = server.getNextConnectionId();
+		DecodePool decodePool = server.getDecodePool();
+		if (decodePool != null) {
+			decodeLane = decodePool.newLane();
+		}
+
+		// Add to unassigned shard initially (will be moved to correct shard on login)
+		long id = server.addConnectionToShard(this, Server.UNASSIGNED_SHARD);
 
 		this.setConnectionID(id);
 
-		// Add to unassigned shard initially (will be moved to correct shard on login)
-		server.addConnectionToShard(id, this, Server.UNASSIGNED_SHARD);
+		// A user ID set before activation could not be indexed without a connection ID.
+		synchronized (this) {
+			long userId = getUserID();
+			if (userId != -1) {
+				server.indexUser(this, -1, userId);
+			}
+		}
 
 		// Dispatch to listeners on their own threads (one thread per listener).
 		server.dispatchChannelActive(this);
@@ -51,6 +82,83 @@ public class ServerConnectionHandler<T> extends Connection<T> {
 		Log.debug("New connection established with id: " + id);
 	}
 
+	/**
+	 * Sets the user ID and keeps the server's user index in sync. A user ID set before the connection is active is
+	 * indexed when it becomes active.
+	 */
+	@Override
+	public synchronized void setUserID(long userID) {
+		long previous = getUserID();
+
+		super.setUserID(userID);
+
+		if (previous != userID) {
+			server.indexUser(this, previous, userID);
+		}
+	}
+
+	public long getTagBits() {
+		return tagBits;
+	}
+
+	public boolean hasTag(int bit) {
+		return (tagBits & (1L << bit)) != 0;
+	}
+
+	/**
+	 * @return true if the bit changed
+	 */
+	synchronized boolean setTag(int bit, boolean set) {
+		long mask = 1L << bit;
+		long previous = tagBits;
+		tagBits = set ? (previous | mask) : (previous & ~mask);
+		return previous != tagBits;
+	}
+
+	long getLinkToken() {
+		return linkToken;
+	}
+
+	void setLinkToken(long linkToken) {
+		this.linkToken = linkToken;
+	}
+
+	/**
+	 * Creates a handler array, generic arrays can't be created directly.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> ServerConnectionHandler<T>[] newArray(int length) {
+		return (ServerConnectionHandler<T>[]) new ServerConnectionHandler<?>[length];
+	}
+
+	public Set<String> getGroups() {
+		Set<String> groups = this.groups;
+		return groups != null ? Collections.unmodifiableSet(groups) : Collections.emptySet();
+	}
+
+	void addGroup(String group) {
+		Set<String> groups = this.groups;
+
+		if (groups == null) {
+			synchronized (this) {
+				groups = this.groups;
+				if (groups == null) {
+					groups = ConcurrentHashMap.newKeySet();
+					this.groups = groups;
+				}
+			}
+		}
+
+		groups.add(group);
+	}
+
+	void removeGroup(String group) {
+		Set<String> groups = this.groups;
+		if (groups != null) {
+			groups.remove(group);
+		}
+	}
+
 	@Override
 	public void channelInactive(ChannelHandlerContext ctx) throws Exception {
 		if (isInactive()) {
@@ -101,8 +209,55 @@ public class ServerConnectionHandler<T> extends Connection<T> {
 		byte[] bytes = new byte[size];
 		byteBuf.readBytes(bytes);
 
+		// The client asks for a UDP session or names its shared memory ring, not a packet.
+		if (UdpSession.isControlFrame(bytes)) {
+			if (UdpSession.isRequestFrame(bytes)) {
+				server.openUdpSession(this);
+			} else if (UdpSession.isLinkTokenFrame(bytes)) {
+				server.registerLinkToken(this, UdpSession.getLinkToken(bytes));
+			}
+			return;
+		}
+
+		// Offload expensive packets, and anything queued behind them so the connection keeps its order.
+		DecodePool.Lane lane = decodeLane;
+		if (lane != null && (!lane.isIdle() || server.isDecodeOffloaded(getFrameClass(bytes), size))) {
+			lane.execute(() -> handleFrame(bytes, size));
+		} else {
+			handleFrame(bytes, size);
+		}
+	}
+
+	/**
+	 * Dispatches a frame received over this connection's UDP session. Runs on the event loop of the server's UDP channel.
+	 */
+	void receiveDatagram(byte[] frame) {
+		if (isInactive()) {
+			return;
+		}
+
+		addBytesReceived(frame.length);
+
+		Packet packet = readPacket(frame);
+
+		// Pings are answered over TCP only.
+		if (packet != null && !(packet instanceof PacketPing)) {
+			server.dispatchChannelRead(this, packet);
+		}
+
+		Log.trace("Received UDP packet: " + (packet == null ? "null" : packet.getClass().getName()) + ", Size: " + frame.length + " bytes. ");
+	}
+
+	/**
+	 * Decodes a received frame and dispatches it. Runs on the event loop or on this connection's decode lane.
+	 */
+	private void handleFrame(byte[] bytes, int size) {
+		if (isInactive()) {
+			return;
+		}
+
 		// Convert bytes to packet
-		Packet packet = bytesToPacket(bytes);
+		Packet packet = readPacket(bytes);
 
 		// Send the ping packet right back (keep this immediate).
 		if (packet instanceof PacketPing) {
@@ -0,0 +1,11 @@
+package ctu.core.server;
+
+/**
+ * @author     Fentus
+ *
+ *             The connections of one shard. Membership, lookup and the versioned snapshot come from {@link ConnectionSet}; the shard type only names the role so the server's shard array can't be mixed up with its tag member lists.
+ *
+ * @param  <T>
+ */
+final class Shard<T> extends ConnectionSet<T> {
+}
@@ -0,0 +1,207 @@
+package ctu.core.server;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ctu.core.abstracts.FlushBatch;
+import ctu.core.abstracts.Packet;
+import ctu.core.interfaces.ShardTickHandler;
+import ctu.core.logger.Log;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.EventLoop;
+
+/**
+ * @author     Fentus
+ *
+ *             Runs one fixed-rate tick loop per shard. Each shard ID is owned by a single thread, which drains the packets received by that shard's connections, runs the registered {@link ShardTickHandler}s and flushes all outbound writes at the end of the tick.
+ *
+ *             Notes: - Loops are only created for the shards known when the runtime starts and for shards added later through {@link Server#configureShards(java.util.Map)}, never for {@link Server#UNASSIGNED_SHARD}. - Packets of a shard without a loop are not queued. - Each loop queues at most its capacity before switching autoRead off on the connections that keep sending, reading resumes once a tick has drained the queue below half of it. Packets already read when a channel is paused are still queued. - A tick that overruns delays the next one, ticks never run concurrently for a shard. - With {@link Server#setShardAffinity(boolean)} the tick runs on the shard's pinned event loop instead of a dedicated thread, keep ticks short since they share the loop with the shard's I/O.
+ *
+ * @param  <T>
+ */
+public class ShardRuntime<T> {
+	private final Server<T> server;
+	private final long tickNanos;
+	private final int capacity;
+	private final int resumeBelow;
+	private final CopyOnWriteArrayList<ShardTickHandler<T>> handlers;
+	private final ConcurrentHashMap<Integer, ShardLoop> loops = new ConcurrentHashMap<>();
+
+	// Guarded by this: no loop is created once shutdown has begun.
+	private boolean running = true;
+
+	ShardRuntime(Server<T> server, int ticksPerSecond, int capacity, CopyOnWriteArrayList<ShardTickHandler<T>> handlers) {
+		if (ticksPerSecond <= 0) {
+			throw new IllegalArgumentException("ticksPerSecond must be positive: " + ticksPerSecond);
+		}
+
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("capacity must be positive: " + capacity);
+		}
+
+		this.server = server;
+		this.tickNanos = TimeUnit.SECONDS.toNanos(1) / ticksPerSecond;
+		this.capacity = capacity;
+		this.resumeBelow = Math.max(1, capacity / 2);
+		this.handlers = handlers;
+	}
+
+	/**
+	 * Starts the loop for a shard if it isn't running yet.
+	 */
+	synchronized void startShard(int shardId) {
+		if (running && shardId != Server.UNASSIGNED_SHARD) {
+			loops.computeIfAbsent(shardId, ShardLoop::new);
+		}
+	}
+
+	/**
+	 * Queues a received packet for the next tick of the given shard.
+	 *
+	 * @return false if the shard has no loop, the packet was not queued
+	 */
+	boolean offer(int shardId, ServerConnectionHandler<T> connection, Packet packet) {
+		ShardLoop loop = loops.get(shardId);
+		if (loop == null) {
+			return false;
+		}
+
+		loop.inbound.offer(new InboundPacket<>(connection, packet));
+
+		// Full: stop reading from this socket until a tick has drained the queue.
+		if (loop.queued.incrementAndGet() >= capacity) {
+			loop.pause(connection);
+		}
+
+		return true;
+	}
+
+	public long getTick(int shardId) {
+		ShardLoop loop = loops.get(shardId);
+		return loop != null ? loop.tick : 0;
+	}
+
+	synchronized void shutdown() {
+		running = false;
+
+		for (ShardLoop loop : loops.values()) {
+			loop.stop();
+			loop.resumeAll();
+		}
+
+		loops.clear();
+	}
+
+	private class ShardLoop {
+		private final int shardId;
+		private final ScheduledExecutorService executor;
+		private final boolean ownsExecutor;
+		private final ScheduledFuture<?> future;
+		private final ConcurrentLinkedQueue<InboundPacket<T>> inbound = new ConcurrentLinkedQueue<>();
+		// Packets in the queue, counted after each offer so it never runs ahead of what poll() can return.
+		private final AtomicInteger queued = new AtomicInteger();
+		private final Set<Channel> paused = ConcurrentHashMap.newKeySet();
+
+		private volatile long tick = 0;
+
+		ShardLoop(int shardId) {
+			this.shardId = shardId;
+
+			EventLoop eventLoop = server.getShardEventLoop(shardId);
+
+			if (eventLoop != null) {
+				this.executor = eventLoop;
+				this.ownsExecutor = false;
+			} else {
+				this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+					Thread t = new Thread(r);
+					t.setName("Shard-" + shardId);
+					t.setDaemon(true);
+					return t;
+				});
+				this.ownsExecutor = true;
+			}
+
+			this.future = executor.scheduleAtFixedRate(this::tick, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+		}
+
+		void stop() {
+			future.cancel(false);
+
+			if (ownsExecutor) {
+				executor.shutdownNow();
+			}
+		}
+
+		void pause(ServerConnectionHandler<T> connection) {
+			ChannelHandlerContext ctx = connection.getCtx();
+
+			if (ctx != null && paused.add(ctx.channel())) {
+				InboundPublisher.pause(ctx.channel());
+			}
+
+			// A tick may have drained the queue while pausing.
+			if (queued.get() < resumeBelow) {
+				resumeAll();
+			}
+		}
+
+		void resumeAll() {
+			for (Channel channel : paused) {
+				if (paused.remove(channel)) {
+					InboundPublisher.resume(channel);
+				}
+			}
+		}
+
+		private void tick() {
+			FlushBatch batch = FlushBatch.begin();
+
+			try {
+				// Only drain what arrived before this tick started, late packets wait for the next one.
+				int count = queued.get();
+				int drained = 0;
+
+				for (; drained < count; drained++) {
+					InboundPacket<T> item = inbound.poll();
+
+					if (item == null) {
+						break;
+					}
+
+					for (ShardTickHandler<T> handler : handlers) {
+						try {
+							handler.packetReceived(shardId, item.getConnection(), item.getPacket());
+						} catch (Throwable t) {
+							Log.error("Shard " + shardId + " handler failed during packetReceived", t);
+						}
+					}
+				}
+
+				if (queued.addAndGet(-drained) < resumeBelow && !paused.isEmpty()) {
+					resumeAll();
+				}
+
+				for (ShardTickHandler<T> handler : handlers) {
+					try {
+						handler.tick(shardId, tick);
+					} catch (Throwable t) {
+						Log.error("Shard " + shardId + " handler failed during tick", t);
+					}
+				}
+
+				tick++;
+			} finally {
+				batch.end();
+			}
+		}
+	}
+}
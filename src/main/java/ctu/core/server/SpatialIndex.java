@@ -0,0 +1,303 @@
+package ctu.core.server;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+/**
+ * @author     Fentus
+ *
+ *             Uniform grid of connection positions for one shard, used for area-of-interest broadcasts.
+ *
+ *             Each connection sits in the cell containing its last reported position. A range query only visits the cells overlapping the query sphere's bounding box, so the cost depends on the number of nearby connections rather than the shard's population.
+ *
+ *             Notes: - Pick a cell size close to the typical broadcast radius. - Cells live in an open addressing table keyed by the packed cell coordinates, so lookups don't box. - All methods are synchronized on the index, queries copy their matches out before any packet is sent.
+ *
+ * @param  <T>
+ */
+public class SpatialIndex<T> {
+	private final double cellSize;
+	/** Cell coordinates wrap at 21 bits, a query box wider than this on any axis would visit cells twice */
+	private static final double MAX_SPAN = 1 << 21;
+
+	private final CellTable<T> cells = new CellTable<>();
+	private final IdentityHashMap<ServerConnectionHandler<T>, Entry<T>> entries = new IdentityHashMap<>();
+
+	public SpatialIndex(double cellSize) {
+		if (cellSize <= 0) {
+			throw new IllegalArgumentException("cellSize must be positive");
+		}
+		this.cellSize = cellSize;
+	}
+
+	synchronized void update(ServerConnectionHandler<T> handler, double x, double y, double z) {
+		long key = cellKey(cell(x), cell(y), cell(z));
+		Entry<T> entry = entries.get(handler);
+
+		if (entry == null) {
+			entry = new Entry<>(handler);
+			entries.put(handler, entry);
+		} else if (entry.cellKey != key) {
+			removeFromCell(entry);
+		}
+
+		entry.x = x;
+		entry.y = y;
+		entry.z = z;
+
+		if (entry.cell == null) {
+			entry.cellKey = key;
+			Cell<T> cell = cells.get(key);
+			if (cell == null) {
+				cell = new Cell<>();
+				cells.put(key, cell);
+			}
+			entry.cell = cell;
+			cell.add(entry);
+		}
+	}
+
+	synchronized boolean remove(ServerConnectionHandler<T> handler) {
+		Entry<T> entry = entries.remove(handler);
+		if (entry == null) {
+			return false;
+		}
+
+		removeFromCell(entry);
+		return true;
+	}
+
+	/**
+	 * Collects the connections within radius of a point.
+	 *
+	 * @return the matches, null-free and sized to the match count
+	 */
+	synchronized ServerConnectionHandler<T>[] query(double x, double y, double z, double radius) {
+		ServerConnectionHandler<T>[] out = ServerConnectionHandler.newArray(Math.min(entries.size(), 16));
+		int count = 0;
+		double radiusSq = radius * radius;
+
+		// Spans are computed in double so huge or non-finite ranges can't overflow into a small count.
+		double spanX = span(x, radius), spanY = span(y, radius), spanZ = span(z, radius);
+		double cellCount = spanX * spanY * spanZ;
+
+		if (!(cellCount <= cells.size()) || spanX > MAX_SPAN || spanY > MAX_SPAN || spanZ > MAX_SPAN) {
+			// The box spans more cells than are occupied, walking the occupied ones is cheaper.
+			Cell<T>[] values = cells.values;
+			for (Cell<T> cell : values) {
+				if (cell == null) {
+					continue;
+				}
+
+				for (int i = 0; i < cell.size; i++) {
+					Entry<T> entry = cell.entries[i];
+					if (entry.distanceSq(x, y, z) <= radiusSq) {
+						out = append(out, count++, entry.handler);
+					}
+				}
+			}
+		} else {
+			long minX = cell(x - radius), maxX = cell(x + radius);
+			long minY = cell(y - radius), maxY = cell(y + radius);
+			long minZ = cell(z - radius), maxZ = cell(z + radius);
+
+			for (long cx = minX; cx <= maxX; cx++) {
+				for (long cy = minY; cy <= maxY; cy++) {
+					for (long cz = minZ; cz <= maxZ; cz++) {
+						Cell<T> cell = cells.get(cellKey(cx, cy, cz));
+						if (cell == null) {
+							continue;
+						}
+
+						for (int i = 0; i < cell.size; i++) {
+							Entry<T> entry = cell.entries[i];
+							if (entry.distanceSq(x, y, z) <= radiusSq) {
+								out = append(out, count++, entry.handler);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		return Arrays.copyOf(out, count);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	private void removeFromCell(Entry<T> entry) {
+		if (entry.cell != null) {
+			entry.cell.remove(entry);
+
+			if (entry.cell.size == 0) {
+				cells.remove(entry.cellKey);
+			}
+
+			entry.cell = null;
+		}
+	}
+
+	private long cell(double coordinate) {
+		return (long) Math.floor(coordinate / cellSize);
+	}
+
+	private double span(double coordinate, double radius) {
+		return Math.floor((coordinate + radius) / cellSize) - Math.floor((coordinate - radius) / cellSize) + 1;
+	}
+
+	/**
+	 * Packs three cell coordinates (21 bits each) into one key.
+	 */
+	private static long cellKey(long cx, long cy, long cz) {
+		return ((cx & 0x1FFFFF) << 42) | ((cy & 0x1FFFFF) << 21) | (cz & 0x1FFFFF);
+	}
+
+	private static <H> H[] append(H[] array, int index, H value) {
+		if (index == array.length) {
+			array = Arrays.copyOf(array, Math.max(16, array.length * 2));
+		}
+		array[index] = value;
+		return array;
+	}
+
+	private static final class Entry<T> {
+		private final ServerConnectionHandler<T> handler;
+		private double x, y, z;
+		private long cellKey;
+		private Cell<T> cell;
+
+		Entry(ServerConnectionHandler<T> handler) {
+			this.handler = handler;
+		}
+
+		double distanceSq(double px, double py, double pz) {
+			double dx = x - px, dy = y - py, dz = z - pz;
+			return dx * dx + dy * dy + dz * dz;
+		}
+	}
+
+	/**
+	 * Open addressing map from packed cell key to cell, linear probing with backward shift deletion.
+	 */
+	static final class CellTable<T> {
+		private long[] keys = new long[16];
+		@SuppressWarnings("unchecked")
+		private Cell<T>[] values = (Cell<T>[]) new Cell<?>[16];
+		private int size = 0;
+
+		Cell<T> get(long key) {
+			int mask = keys.length - 1;
+
+			for (int i = index(key, mask); values[i] != null; i = (i + 1) & mask) {
+				if (keys[i] == key) {
+					return values[i];
+				}
+			}
+
+			return null;
+		}
+
+		void put(long key, Cell<T> cell) {
+			if ((size + 1) * 2 > keys.length) {
+				rehash(keys.length * 2);
+			}
+
+			int mask = keys.length - 1;
+			int i = index(key, mask);
+
+			while (values[i] != null) {
+				if (keys[i] == key) {
+					values[i] = cell;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+
+			keys[i] = key;
+			values[i] = cell;
+			size++;
+		}
+
+		void remove(long key) {
+			int mask = keys.length - 1;
+			int i = index(key, mask);
+
+			while (values[i] != null && keys[i] != key) {
+				i = (i + 1) & mask;
+			}
+
+			if (values[i] == null) {
+				return;
+			}
+
+			// Shift later entries of the probe run back so lookups never stop at the hole.
+			int hole = i;
+			for (int j = (hole + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+				int home = index(keys[j], mask);
+				if (((j - home) & mask) >= ((j - hole) & mask)) {
+					keys[hole] = keys[j];
+					values[hole] = values[j];
+					hole = j;
+				}
+			}
+
+			values[hole] = null;
+			size--;
+		}
+
+		int size() {
+			return size;
+		}
+
+		private void rehash(int capacity) {
+			long[] oldKeys = keys;
+			Cell<T>[] oldValues = values;
+
+			keys = new long[capacity];
+			@SuppressWarnings("unchecked")
+			Cell<T>[] grown = (Cell<T>[]) new Cell<?>[capacity];
+			values = grown;
+			size = 0;
+
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldValues[i] != null) {
+					put(oldKeys[i], oldValues[i]);
+				}
+			}
+		}
+
+		static int index(long key, int mask) {
+			long h = key * 0x9E3779B97F4A7C15L;
+			return (int) (h ^ (h >>> 32)) & mask;
+		}
+	}
+
+	static final class Cell<T> {
+		@SuppressWarnings("unchecked")
+		private Entry<T>[] entries = (Entry<T>[]) new Entry<?>[4];
+		private int size = 0;
+
+		void add(Entry<T> entry) {
+			if (size == entries.length) {
+				entries = Arrays.copyOf(entries, size * 2);
+			}
+			entries[size++] = entry;
+		}
+
+		void remove(Entry<T> entry) {
+			for (int i = 0; i < size; i++) {
+				if (entries[i] == entry) {
+					// Order within a cell doesn't matter, swap the last entry in.
+					entries[i] = entries[--size];
+					entries[size] = null;
+					return;
+				}
+			}
+		}
+	}
+}
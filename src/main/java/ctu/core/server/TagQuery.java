@@ -0,0 +1,252 @@
+package ctu.core.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * @author Fentus
+ *
+ *         A boolean expression over connection tags, used by {@link Server#broadcastTCP(ctu.core.abstracts.Packet, TagQuery)}.
+ *
+ *         Queries are built from tag names with {@link #tag}, {@link #and}, {@link #or} and {@link #not} (or the {@link #all} / {@link #any} shorthands). The server resolves the names to bits once per broadcast and reduces the expression to a disjunction of (required bits, forbidden bits) mask pairs, so each connection is matched with a few mask tests and no calls.
+ *
+ *         A server supports at most 64 tags ({@link Server#defineTag(String)} throws beyond that). Negating large OR expressions multiplies the number of mask pairs, queries that would need more than {@value #MAX_CLAUSES} are rejected.
+ */
+public abstract class TagQuery {
+
+	static final int MAX_CLAUSES = 1024;
+
+	private static final long[] FALSE = new long[0];
+	private static final long[] TRUE = new long[] { 0, 0 };
+
+	TagQuery() {
+	}
+
+	public static TagQuery tag(String name) {
+		return new Tag(name);
+	}
+
+	public static TagQuery and(TagQuery... queries) {
+		return new And(queries);
+	}
+
+	public static TagQuery or(TagQuery... queries) {
+		return new Or(queries);
+	}
+
+	public static TagQuery not(TagQuery query) {
+		return new Not(query);
+	}
+
+	/**
+	 * Connections carrying every one of the tags.
+	 */
+	public static TagQuery all(String... names) {
+		TagQuery[] tags = new TagQuery[names.length];
+		for (int i = 0; i < names.length; i++) {
+			tags[i] = new Tag(names[i]);
+		}
+		return new And(tags);
+	}
+
+	/**
+	 * Connections carrying at least one of the tags.
+	 */
+	public static TagQuery any(String... names) {
+		TagQuery[] tags = new TagQuery[names.length];
+		for (int i = 0; i < names.length; i++) {
+			tags[i] = new Tag(names[i]);
+		}
+		return new Or(tags);
+	}
+
+	/**
+	 * Resolves tag names to bit indexes (negative when unknown) and returns the query in disjunctive normal form: pairs of (required, forbidden) masks at even and odd indexes. A bitset matches when {@code (bits & required) == required && (bits & forbidden) == 0} holds for any pair; no pairs never match.
+	 *
+	 * @throws IllegalArgumentException if the query needs more than {@value #MAX_CLAUSES} pairs
+	 */
+	abstract long[] compile(ToIntFunction<String> bits);
+
+	/**
+	 * Tags that every matching connection must carry. The server iterates the smallest of their member lists instead of every connection.
+	 */
+	abstract List<String> requiredTags();
+
+	/**
+	 * Conjunction of two compiled queries: every pair of one combined with every pair of the other, dropping contradictions.
+	 */
+	private static long[] andClauses(long[] a, long[] b) {
+		Clauses out = new Clauses();
+
+		for (int i = 0; i < a.length; i += 2) {
+			for (int j = 0; j < b.length; j += 2) {
+				long required = a[i] | b[j];
+				long forbidden = a[i + 1] | b[j + 1];
+
+				if ((required & forbidden) == 0) {
+					out.add(required, forbidden);
+				}
+			}
+		}
+
+		return out.toArray();
+	}
+
+	private static long[] orClauses(long[] a, long[] b) {
+		Clauses out = new Clauses();
+
+		for (int i = 0; i < a.length; i += 2) {
+			out.add(a[i], a[i + 1]);
+		}
+		for (int j = 0; j < b.length; j += 2) {
+			out.add(b[j], b[j + 1]);
+		}
+
+		return out.toArray();
+	}
+
+	/**
+	 * De Morgan: the negation of a disjunction is the conjunction of the negated pairs, and a negated pair is the disjunction of each required bit forbidden and each forbidden bit required.
+	 */
+	private static long[] notClauses(long[] clauses) {
+		long[] result = TRUE;
+
+		for (int i = 0; i < clauses.length; i += 2) {
+			long[] negated = FALSE;
+
+			for (long required = clauses[i]; required != 0; required &= required - 1) {
+				negated = orClauses(negated, new long[] { 0, Long.lowestOneBit(required) });
+			}
+			for (long forbidden = clauses[i + 1]; forbidden != 0; forbidden &= forbidden - 1) {
+				negated = orClauses(negated, new long[] { Long.lowestOneBit(forbidden), 0 });
+			}
+
+			result = andClauses(result, negated);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Growable list of distinct mask pairs.
+	 */
+	private static final class Clauses {
+		private long[] data = new long[8];
+		private int size = 0;
+
+		void add(long required, long forbidden) {
+			for (int i = 0; i < size; i += 2) {
+				if (data[i] == required && data[i + 1] == forbidden) {
+					return;
+				}
+			}
+
+			if (size / 2 >= MAX_CLAUSES) {
+				throw new IllegalArgumentException("Tag query is too complex, it needs more than " + MAX_CLAUSES + " mask pairs");
+			}
+
+			if (size + 2 > data.length) {
+				data = Arrays.copyOf(data, data.length * 2);
+			}
+
+			data[size++] = required;
+			data[size++] = forbidden;
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+
+	private static final class Tag extends TagQuery {
+		private final String name;
+
+		Tag(String name) {
+			this.name = name;
+		}
+
+		@Override
+		long[] compile(ToIntFunction<String> bits) {
+			int bit = bits.applyAsInt(name);
+			if (bit < 0) {
+				return FALSE;
+			}
+
+			return new long[] { 1L << bit, 0 };
+		}
+
+		@Override
+		List<String> requiredTags() {
+			return Collections.singletonList(name);
+		}
+	}
+
+	private static final class And extends TagQuery {
+		private final TagQuery[] queries;
+
+		And(TagQuery[] queries) {
+			this.queries = queries;
+		}
+
+		@Override
+		long[] compile(ToIntFunction<String> bits) {
+			long[] clauses = TRUE;
+			for (TagQuery query : queries) {
+				clauses = andClauses(clauses, query.compile(bits));
+			}
+			return clauses;
+		}
+
+		@Override
+		List<String> requiredTags() {
+			List<String> tags = new ArrayList<>();
+			for (TagQuery query : queries) {
+				tags.addAll(query.requiredTags());
+			}
+			return tags;
+		}
+	}
+
+	private static final class Or extends TagQuery {
+		private final TagQuery[] queries;
+
+		Or(TagQuery[] queries) {
+			this.queries = queries;
+		}
+
+		@Override
+		long[] compile(ToIntFunction<String> bits) {
+			long[] clauses = FALSE;
+			for (TagQuery query : queries) {
+				clauses = orClauses(clauses, query.compile(bits));
+			}
+			return clauses;
+		}
+
+		@Override
+		List<String> requiredTags() {
+			return Collections.emptyList();
+		}
+	}
+
+	private static final class Not extends TagQuery {
+		private final TagQuery query;
+
+		Not(TagQuery query) {
+			this.query = query;
+		}
+
+		@Override
+		long[] compile(ToIntFunction<String> bits) {
+			return notClauses(query.compile(bits));
+		}
+
+		@Override
+		List<String> requiredTags() {
+			return Collections.emptyList();
+		}
+	}
+}
@@ -1,5 +1,8 @@
 package ctu.core.server.bridge;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.security.SecureRandom;
 import java.util.HashMap;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
@@ -10,18 +13,27 @@ import java.util.concurrent.TimeUnit;
 
 import ctu.core.abstracts.Connection;
 import ctu.core.abstracts.Packet;
+import ctu.core.abstracts.UdpSession;
 import ctu.core.callbacks.CallbackConnect;
 import ctu.core.client.Client;
 import ctu.core.interfaces.Listener;
 import ctu.core.logger.Log;
+import ctu.core.server.Server;
+import ctu.core.server.ServerConnectionHandler;
 import ctu.core.server.config.RemoteServerConfig;
+import ctu.core.transport.NetworkResources;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.ssl.SslContext;
 
 public class BridgeConnection<T> implements Listener<T> {
+	private static final SecureRandom RANDOM = new SecureRandom();
+
 	private final String remoteServerId;
 	private final RemoteServerConfig remoteConfig;
 	private final HashMap<Integer, Class<?>> packetClasses;
 	private final List<BridgeListener<T>> listeners = new CopyOnWriteArrayList<>();
-	private final ScheduledExecutorService reconnectScheduler = Executors.newSingleThreadScheduledExecutor();
+	// Own reconnect timer, only created when no shared NetworkResources are set.
+	private ScheduledExecutorService reconnectScheduler;
 
 	private Client<T> client;
 	private volatile boolean connected = false;
@@ -31,6 +43,19 @@ public class BridgeConnection<T> implements Listener<T> {
 	private final T connectionObject;
 	private final int timeout;
 	private final String localServerId;
+	private volatile boolean lazyDecoding = false;
+	private volatile NetworkResources resources;
+	private volatile SslContext sslContext;
+	private volatile String linkSecret;
+	private volatile boolean local = false;
+	private volatile SharedMemoryLink<T> sharedMemoryLink;
+	// Names this side's ring to the remote, announced on every socket connection.
+	private volatile long sharedMemoryToken;
+	// Server the shared memory packets are dispatched to, and its connection from the remote (reader thread only).
+	private volatile Server<T> sharedMemoryServer;
+	private ServerConnectionHandler<T> sharedMemoryPeer;
+	private volatile Connection<T> connection;
+	private boolean cipherConflictLogged = false;
 
 	public BridgeConnection(String localServerId, String remoteServerId, RemoteServerConfig remoteConfig, HashMap<Integer, Class<?>> packetClasses, T connectionObject, int timeout) {
 		this.localServerId = localServerId;
@@ -46,10 +71,50 @@ public class BridgeConnection<T> implements Listener<T> {
 			return;
 		}
 
-		Log.debug("BridgeConnection: Connecting to " + remoteServerId + " at " + remoteConfig.getHost() + ":" + remoteConfig.getPort());
+		String linkSecret = this.linkSecret;
+		boolean local = remoteConfig.isLocal() || this.local;
+		String socketPath = local ? null : remoteConfig.getSocketPath();
+		boolean trusted = !local && socketPath == null && linkSecret != null && remoteConfig.getBridgePort() > 0;
+		int port = trusted ? remoteConfig.getBridgePort() : remoteConfig.getPort();
 
-		client = new Client<>(remoteConfig.getHost(), remoteConfig.getPort(), timeout, connectionObject);
+		if (local) {
+			Log.debug("BridgeConnection: Connecting to " + remoteServerId + " in this JVM");
+		} else if (socketPath != null) {
+			Log.debug("BridgeConnection: Connecting to " + remoteServerId + " at " + socketPath);
+		} else {
+			Log.debug("BridgeConnection: Connecting to " + remoteServerId + " at " + remoteConfig.getHost() + ":" + port + (trusted ? " (trusted link)" : ""));
+		}
+
+		SslContext sslContext = this.sslContext;
+		if (sslContext != null) {
+			client = new Client<>(remoteConfig.getHost(), port, timeout, connectionObject, Connection.DEFAULT_MARSHAL_BUFFER_SIZE, sslContext);
+		} else {
+			client = new Client<>(remoteConfig.getHost(), port, timeout, connectionObject);
+		}
+
+		if (local) {
+			client.setLocalServer(remoteServerId);
+		} else if (socketPath != null) {
+			client.setUnixSocket(socketPath, remoteConfig.isSocketTls());
+			if (!remoteConfig.isSocketTls() && linkSecret != null) {
+				client.setLinkSecret(linkSecret);
+			}
+		} else if (trusted) {
+			client.setLinkSecret(linkSecret);
+		} else if (remoteConfig.getCipherSuites() != null) {
+			if (sslContext == null) {
+				client.setCipherSuites(remoteConfig.getCipherSuites().toArray(new String[0]));
+			} else if (!cipherConflictLogged) {
+				// A built context can't be narrowed, the shared one decides the suites.
+				cipherConflictLogged = true;
+				Log.warn("BridgeConnection: Cipher suites configured for " + remoteServerId + " are ignored, the TLS context set with setSslContext() decides them");
+			}
+		}
 		client.setPingName(localServerId + " -> " + remoteServerId);
+		client.setLazyDecoding(lazyDecoding);
+		if (resources != null) {
+			client.setNetworkResources(resources);
+		}
 
 		for (var entry : packetClasses.entrySet()) {
 			client.register(entry.getValue());
@@ -90,11 +155,29 @@ public class BridgeConnection<T> implements Listener<T> {
 		}
 
 		connected = false;
+
+		closeSharedMemory();
 	}
 
 	public void sendPacket(Packet packet) {
+		SharedMemoryLink<T> link = sharedMemoryLink;
+
+		// Use the ring while the socket is up and the remote reads it, and stay on it until the remote has read everything in it: the socket would overtake those packets.
+		if (link != null && (connected && link.isPeerAttached() || !link.isDrained())) {
+			if (link.send(packet)) {
+				return;
+			}
+
+			if (!link.isDrained()) {
+				Log.warn("BridgeConnection: Dropped " + packet.getClass().getSimpleName() + " to " + remoteServerId + " - shared memory link full");
+				return;
+			}
+		}
+
 		if (client != null && connected) {
 			client.sendTCP(packet);
+		} else if (link != null) {
+			Log.warn("BridgeConnection: Dropped " + packet.getClass().getSimpleName() + " to " + remoteServerId + " - not connected");
 		} else {
 			Log.debug("BridgeConnection: Cannot send packet to " + remoteServerId + " - not connected");
 		}
@@ -108,6 +191,130 @@ public class BridgeConnection<T> implements Listener<T> {
 		listeners.remove(listener);
 	}
 
+	public void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
+	/**
+	 * Connect through event loops and a timer shared with the other bridge connections instead of a dedicated group and pool per connect attempt.
+	 */
+	public void setNetworkResources(NetworkResources resources) {
+		this.resources = resources;
+	}
+
+	/**
+	 * Use this TLS context for every connect and reconnect instead of the cached context for server.crt. The remote's configured cipher suites are then ignored, with a warning.
+	 */
+	public void setSslContext(SslContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Secret for trusted links. When set, remotes with a bridge port are reached over plaintext with an HMAC hello instead of TLS.
+	 */
+	public void setLinkSecret(String linkSecret) {
+		this.linkSecret = linkSecret;
+	}
+
+	/**
+	 * Connect to the remote in memory, as if its config was marked local. The remote server must be bound with Server.bindLocal under its server ID.
+	 */
+	public void setLocal(boolean local) {
+		this.local = local;
+	}
+
+	/**
+	 * Experimental: exchange packets with the remote through memory-mapped ring files in a directory both processes can reach (e.g. under /dev/shm). The remote must enable it for this server with the same directory and capacity.
+	 *
+	 * While the socket connection is up and the remote reads its ring, {@link #sendPacket(Packet)} writes into the ring. Sending does not block: packets wait in the ring or a queue of the same size until the remote reads them. Once the ring has taken a packet, later ones follow it until the remote has read both empty, so the order is kept: a packet that finds them full is dropped with a warning, and sending only moves to the socket when they are empty and the remote stopped reading or the socket went down. The remote hands ring packets to its server's listeners through the connection this bridge's socket arrived on, like packets sent over the socket; this side names its ring with a random token on every socket connection, and the remote keeps ring packets waiting in the ring until a connection has announced it.
+	 *
+	 * @param directory directory of the ring files, one per direction
+	 * @param capacity  bytes per ring, a power of two
+	 * @param server    the local server, which receives the packets the remote sends through its ring
+	 */
+	public void enableSharedMemory(Path directory, int capacity, Server<T> server) {
+		if (server == null) {
+			throw new IllegalArgumentException("Shared memory needs the local server");
+		}
+
+		closeSharedMemory();
+
+		try {
+			sharedMemoryServer = server;
+			sharedMemoryPeer = null;
+
+			SharedMemoryLink<T> link = new SharedMemoryLink<>(directory, localServerId, remoteServerId, capacity, packetClasses, connectionObject, lazyDecoding, this::dispatchSharedMemory, this::findSharedMemoryPeer);
+
+			long token;
+			do {
+				token = RANDOM.nextLong();
+			} while (token == 0);
+
+			link.setLinkToken(token);
+			sharedMemoryToken = token;
+			sharedMemoryLink = link;
+
+			Connection<T> connection = this.connection;
+			if (connection != null) {
+				announceSharedMemory(connection);
+			}
+
+			Log.debug("BridgeConnection: Shared memory link to " + remoteServerId + " in " + directory);
+		} catch (IOException e) {
+			Log.warn("BridgeConnection: Shared memory link to " + remoteServerId + " unavailable, using the socket: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Hands a packet from the remote's ring to the local server as if it had arrived on the remote's socket connection. Runs on the link's reader thread, only after {@link #findSharedMemoryPeer()} found that connection.
+	 */
+	private void dispatchSharedMemory(Packet packet) {
+		Server<T> server = sharedMemoryServer;
+		if (server == null) {
+			return;
+		}
+
+		Log.trace(String.format("[%s <- %s] Received %s (shared memory)", localServerId, remoteServerId, packet.getClass().getSimpleName()));
+		server.dispatchChannelRead(sharedMemoryPeer, packet);
+	}
+
+	/**
+	 * Looks up the local server's connection on which the remote announced the token of its ring. Runs on the link's reader thread before each read.
+	 *
+	 * @return false while there is none, the link then leaves the remote's packets in the ring
+	 */
+	private boolean findSharedMemoryPeer() {
+		Server<T> server = sharedMemoryServer;
+		SharedMemoryLink<T> link = sharedMemoryLink;
+
+		ServerConnectionHandler<T> peer = link != null && server != null ? server.getLinkPeer(link.getPeerLinkToken()) : null;
+		sharedMemoryPeer = peer != null && !peer.isInactive() ? peer : null;
+
+		return sharedMemoryPeer != null;
+	}
+
+	/**
+	 * Names this side's ring on a new socket connection, see {@link Server#getLinkPeer(long)}.
+	 */
+	private void announceSharedMemory(Connection<T> connection) {
+		connection.sendFrame(Unpooled.wrappedBuffer(UdpSession.toLinkTokenFrame(sharedMemoryToken)), SharedMemoryLink.class.getSimpleName());
+	}
+
+	public boolean isSharedMemoryAttached() {
+		SharedMemoryLink<T> link = sharedMemoryLink;
+		return link != null && link.isPeerAttached();
+	}
+
+	private void closeSharedMemory() {
+		SharedMemoryLink<T> link = sharedMemoryLink;
+		sharedMemoryLink = null;
+		sharedMemoryServer = null;
+
+		if (link != null) {
+			link.close();
+		}
+	}
+
 	public boolean isConnected() {
 		return connected && client != null && client.isConnected();
 	}
@@ -129,7 +336,7 @@ public class BridgeConnection<T> implements Listener<T> {
 			return;
 		}
 
-		reconnectFuture = reconnectScheduler.schedule(() -> {
+		reconnectFuture = getReconnectScheduler().schedule(() -> {
 			if (shouldReconnect && !connected) {
 				Log.debug("BridgeConnection: Attempting reconnect to " + remoteServerId);
 				if (client != null) {
@@ -141,6 +348,18 @@ public class BridgeConnection<T> implements Listener<T> {
 		}, 5, TimeUnit.SECONDS);
 	}
 
+	private synchronized ScheduledExecutorService getReconnectScheduler() {
+		NetworkResources resources = this.resources;
+		if (resources != null) {
+			return resources.getScheduler();
+		}
+
+		if (reconnectScheduler == null) {
+			reconnectScheduler = Executors.newSingleThreadScheduledExecutor();
+		}
+		return reconnectScheduler;
+	}
+
 	private void notifyConnected() {
 		for (BridgeListener<T> listener : listeners) {
 			try {
@@ -174,7 +393,13 @@ public class BridgeConnection<T> implements Listener<T> {
 	@Override
 	public void channelActive(Connection<T> connection) {
 		// Called after TLS handshake completes - now safe to send packets
+		this.connection = connection;
 		connected = true;
+
+		if (sharedMemoryLink != null) {
+			announceSharedMemory(connection);
+		}
+
 		Log.debug("BridgeConnection: Channel active (TLS ready) for " + remoteServerId);
 		notifyConnected();
 	}
@@ -183,6 +408,7 @@ public class BridgeConnection<T> implements Listener<T> {
 	public void channelInactive(Connection<T> connection) {
 		Log.debug("BridgeConnection: Disconnected from " + remoteServerId);
 		connected = false;
+		this.connection = null;
 		if (client != null) {
 			client.close();
 			client = null;
@@ -195,6 +421,7 @@ public class BridgeConnection<T> implements Listener<T> {
 	public void channelExceptionCaught(Connection<T> connection) {
 		Log.debug("BridgeConnection: Exception with " + remoteServerId);
 		connected = false;
+		this.connection = null;
 		if (client != null) {
 			client.close();
 			client = null;
@@ -211,6 +438,12 @@ public class BridgeConnection<T> implements Listener<T> {
 
 	public void shutdown() {
 		disconnect();
-		reconnectScheduler.shutdownNow();
+
+		synchronized (this) {
+			if (reconnectScheduler != null) {
+				reconnectScheduler.shutdownNow();
+				reconnectScheduler = null;
+			}
+		}
 	}
 }
@@ -1,5 +1,6 @@
 package ctu.core.server.bridge;
 
+import java.nio.file.Path;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -9,8 +10,11 @@ import java.util.function.Supplier;
 
 import ctu.core.abstracts.Packet;
 import ctu.core.logger.Log;
+import ctu.core.server.Server;
 import ctu.core.server.config.RemoteServerConfig;
 import ctu.core.server.config.ServerConfig;
+import ctu.core.transport.NetworkResources;
+import io.netty.handler.ssl.SslContext;
 
 public class ServerBridge<T> {
 	private final ServerConfig config;
@@ -19,6 +23,13 @@ public class ServerBridge<T> {
 	private final HashMap<Integer, Class<?>> packetClasses;
 	private final Supplier<T> connectionObjectSupplier;
 	private final int timeout;
+	private volatile boolean lazyDecoding = false;
+	private volatile NetworkResources resources;
+	private volatile SslContext sslContext;
+	private volatile boolean local = false;
+	private volatile Path sharedMemoryDirectory;
+	private volatile int sharedMemoryCapacity;
+	private volatile Server<T> sharedMemoryServer;
 
 	public ServerBridge(ServerConfig config, HashMap<Integer, Class<?>> packetClasses, Supplier<T> connectionObjectSupplier, int timeout) {
 		this.config = config;
@@ -51,6 +62,21 @@ public class ServerBridge<T> {
 			connection.addListener(listener);
 		}
 
+		connection.setLazyDecoding(lazyDecoding);
+		if (resources != null) {
+			connection.setNetworkResources(resources);
+		}
+		if (sslContext != null) {
+			connection.setSslContext(sslContext);
+		}
+		connection.setLinkSecret(config.getBridgeSecret());
+		connection.setLocal(local);
+
+		Path sharedMemoryDirectory = this.sharedMemoryDirectory;
+		if (sharedMemoryDirectory != null && remoteConfig.isSharedMemory()) {
+			connection.enableSharedMemory(sharedMemoryDirectory, sharedMemoryCapacity, sharedMemoryServer);
+		}
+
 		connections.put(serverId, connection);
 		connection.connect();
 	}
@@ -116,6 +142,51 @@ public class ServerBridge<T> {
 		}
 	}
 
+	/**
+	 * Deliver packets from remote servers as {@link ctu.core.abstracts.LazyPacket} handles, applies to connections made after this call. Bridge listeners then have to test packets with {@link Packet#is(Class)} and {@link Packet#as(Class)}, instanceof no longer matches.
+	 */
+	public void setLazyDecoding(boolean lazyDecoding) {
+		this.lazyDecoding = lazyDecoding;
+	}
+
+	/**
+	 * Share one set of event loops and one timer between all remote connections, e.g. {@link NetworkResources#shared()} or the resources of the local Server. Without it every remote gets its own event loop group and thread pools. Applies to connections made after this call.
+	 */
+	public void setNetworkResources(NetworkResources resources) {
+		this.resources = resources;
+	}
+
+	/**
+	 * TLS context shared by all remote connections. Defaults to the cached context for server.crt. Applies to connections made after this call. Per-remote cipher suites are ignored while it is set.
+	 */
+	public void setSslContext(SslContext sslContext) {
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Connect to every remote in memory, e.g. when all servers of a test or a small deployment share one JVM. Remotes can also be marked individually with RemoteServerConfig.setLocal. Applies to connections made after this call.
+	 */
+	public void setLocal(boolean local) {
+		this.local = local;
+	}
+
+	/**
+	 * Experimental: use memory-mapped ring files for remotes marked with RemoteServerConfig.setSharedMemory. All servers of the host must use the same directory and capacity. Packets the remotes send through their rings reach the server's listeners, like packets from their bridge sockets. Applies to connections made after this call.
+	 *
+	 * @param directory directory for the ring files, ideally on tmpfs such as /dev/shm
+	 * @param capacity  bytes per ring and direction, a power of two
+	 * @param server    the local server the remotes' bridges connect to
+	 */
+	public void setSharedMemory(Path directory, int capacity, Server<T> server) {
+		if (server == null) {
+			throw new IllegalArgumentException("Shared memory needs the local server");
+		}
+
+		this.sharedMemoryCapacity = capacity;
+		this.sharedMemoryServer = server;
+		this.sharedMemoryDirectory = directory;
+	}
+
 	public ServerConfig getConfig() {
 		return config;
 	}
@@ -0,0 +1,226 @@
+package ctu.core.server.bridge;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+
+import ctu.core.abstracts.Connection;
+import ctu.core.abstracts.Packet;
+import ctu.core.logger.Log;
+
+/**
+ * Experimental bridge path between two servers on one host over a pair of {@link SharedMemoryRing}s, one file per
+ * direction. Each side produces into its outbound ring and runs a reader thread on the inbound one.
+ *
+ * The reader spins briefly when the ring runs dry and then parks for growing intervals, so a busy link moves packets
+ * without system calls while an idle one costs close to no CPU. Packets are encoded into regular frames, both servers
+ * must register their packets in the same order.
+ *
+ * Sending never waits for the peer: a frame that does not fit the ring is queued, and the reader thread moves queued
+ * frames into the ring as it frees up, so the order is kept. Up to one ring capacity of frames is queued; beyond that
+ * {@link #send(Packet)} refuses the packet. A caller that also has a socket to the peer may only switch to it once
+ * {@link #isDrained()}, otherwise the socket overtakes the packets still on the way.
+ *
+ * Each side tags its outbound ring with a link token it also announces on its socket connection to the peer, so the
+ * peer can deliver ring packets through the server connection that socket packets arrive on. While the receiver can't
+ * take packets yet, e.g. before that announcement arrives, the reader leaves them in the ring instead of dropping them.
+ *
+ * @author Fentus
+ */
+class SharedMemoryLink<T> {
+	private static final int SPIN_LIMIT = 10_000;
+	private static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(20);
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	/** The peer counts as attached while its reader heartbeat is younger than this */
+	private static final long HEARTBEAT_TIMEOUT_MILLIS = 1000;
+
+	private final SharedMemoryRing outbound;
+	private final SharedMemoryRing inbound;
+	private final Connection<T> codec;
+	private final Consumer<Packet> receiver;
+	private final BooleanSupplier receiverReady;
+	private final Thread reader;
+
+	private volatile boolean running = true;
+
+	// Frames waiting for room in the outbound ring, guarded by this.
+	private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+	private long pendingBytes = 0;
+	private volatile int pendingCount = 0;
+
+	SharedMemoryLink(Path directory, String localServerId, String remoteServerId, int capacity, HashMap<Integer, Class<?>> packetClasses, T connectionObject, boolean lazyDecoding, Consumer<Packet> receiver, BooleanSupplier receiverReady) throws IOException {
+		this.outbound = SharedMemoryRing.open(directory.resolve(localServerId + "-" + remoteServerId + ".ring"), capacity);
+
+		try {
+			this.inbound = SharedMemoryRing.open(directory.resolve(remoteServerId + "-" + localServerId + ".ring"), capacity);
+		} catch (IOException e) {
+			outbound.close();
+			throw e;
+		}
+
+		// Detached connection, only used to encode and decode frames.
+		this.codec = new Connection<>(connectionObject);
+		this.codec.setClazzes(packetClasses);
+		this.codec.setLazyDecoding(lazyDecoding);
+		this.receiver = receiver;
+		this.receiverReady = receiverReady;
+
+		inbound.skipPending();
+
+		this.reader = new Thread(this::readLoop, "SharedMemoryLink-" + remoteServerId + "->" + localServerId);
+		this.reader.setDaemon(true);
+		this.reader.start();
+	}
+
+	/**
+	 * Writes a packet into the outbound ring, or queues it behind earlier packets when the ring is full. Never blocks beyond copying the frame.
+	 *
+	 * @return false if the packet was not taken: the link is closed, the frame can't be encoded or is larger than the ring, or the queue is full
+	 */
+	boolean send(Packet packet) {
+		if (!running) {
+			return false;
+		}
+
+		byte[] frame = codec.encodeFrame(packet);
+		if (frame == null) {
+			return false;
+		}
+
+		int record = SharedMemoryRing.recordSize(frame.length);
+		if (record > outbound.getCapacity()) {
+			Log.warn("SharedMemoryLink: " + packet.getClass().getSimpleName() + " of " + frame.length + " bytes does not fit ring " + outbound.getFile());
+			return false;
+		}
+
+		synchronized (this) {
+			if (pending.isEmpty() && outbound.offer(frame)) {
+				return true;
+			}
+
+			// Counted in ring records, so the queue holds at most what one full ring does.
+			if (pendingBytes + record > outbound.getCapacity()) {
+				return false;
+			}
+
+			pending.add(frame);
+			pendingBytes += record;
+			pendingCount = pending.size();
+			return true;
+		}
+	}
+
+	/**
+	 * Moves queued frames into the ring while it has room. Runs on the reader thread.
+	 */
+	private void flushPending() {
+		if (pendingCount == 0) {
+			return;
+		}
+
+		synchronized (this) {
+			byte[] frame;
+
+			while ((frame = pending.peek()) != null && outbound.offer(frame)) {
+				pending.poll();
+				pendingBytes -= SharedMemoryRing.recordSize(frame.length);
+			}
+
+			pendingCount = pending.size();
+		}
+	}
+
+	/**
+	 * Whether every packet taken so far has been read by the peer: nothing is queued and the ring is empty.
+	 */
+	synchronized boolean isDrained() {
+		return pending.isEmpty() && outbound.isDrained();
+	}
+
+	boolean isPeerAttached() {
+		return outbound.isConsumerAlive(HEARTBEAT_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Tags the outbound ring with the token this side announces on its socket, so the peer finds the connection to deliver through.
+	 */
+	void setLinkToken(long token) {
+		outbound.setProducerTag(token);
+	}
+
+	/**
+	 * The token the peer announces on its socket connection to this server, 0 when not set yet.
+	 */
+	long getPeerLinkToken() {
+		return inbound.getProducerTag();
+	}
+
+	void close() {
+		running = false;
+		LockSupport.unpark(reader);
+
+		try {
+			reader.join(TimeUnit.SECONDS.toMillis(1));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		try {
+			outbound.close();
+			inbound.close();
+		} catch (IOException e) {
+			Log.debug("SharedMemoryLink: close failed: " + e.getMessage());
+		}
+	}
+
+	private void readLoop() {
+		int idle = 0;
+		long parkNanos = MIN_PARK_NANOS;
+
+		while (running) {
+			inbound.heartbeat();
+			flushPending();
+
+			byte[] frame = null;
+
+			// Leave the packets in the ring until they can be delivered, the peer's writes back up into its queue meanwhile.
+			if (receiverReady.getAsBoolean()) {
+				try {
+					frame = inbound.poll();
+				} catch (IllegalStateException e) {
+					Log.warn("SharedMemoryLink: " + e.getMessage() + ", skipping to the newest record");
+					inbound.skipPending();
+					continue;
+				}
+			}
+
+			if (frame != null) {
+				idle = 0;
+				parkNanos = MIN_PARK_NANOS;
+
+				Packet packet = codec.readPacket(frame);
+				if (packet != null) {
+					try {
+						receiver.accept(packet);
+					} catch (Exception e) {
+						Log.debug("SharedMemoryLink: receiver error: " + e.getMessage());
+					}
+				}
+				continue;
+			}
+
+			if (++idle < SPIN_LIMIT) {
+				Thread.onSpinWait();
+			} else {
+				LockSupport.parkNanos(parkNanos);
+				parkNanos = Math.min(parkNanos * 2, MAX_PARK_NANOS);
+			}
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package ctu.core.server.bridge;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Single-producer single-consumer ring buffer of byte records in a memory-mapped file, shared by two processes on one
+ * host. Experimental.
+ *
+ * The file starts with a header holding the capacity, the consumer position (head), the producer position (tail), a
+ * consumer heartbeat and a producer tag, each on its own cache line. Records are a 4-byte length followed by the payload, padded to 8
+ * bytes, and may wrap around the end of the data region. Positions only grow; the producer publishes a record by
+ * storing the tail with release semantics after writing it, the consumer frees it the same way through the head, so
+ * neither side needs a lock or a system call.
+ *
+ * One process may only produce and the other only consume. The mapping is released when the buffer is garbage
+ * collected.
+ *
+ * @author Fentus
+ */
+public class SharedMemoryRing implements Closeable {
+	private static final int MAGIC = 0x43545553;
+
+	private static final int MAGIC_OFFSET = 0;
+	private static final int CAPACITY_OFFSET = 8;
+	private static final int HEAD_OFFSET = 64;
+	private static final int TAIL_OFFSET = 128;
+	private static final int HEARTBEAT_OFFSET = 192;
+	private static final int TAG_OFFSET = 256;
+	static final int DATA_OFFSET = 320;
+
+	private static final VarHandle LONG = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final VarHandle INT = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private final Path file;
+	private final FileChannel channel;
+	private final MappedByteBuffer buffer;
+	private final int capacity;
+	private final int mask;
+
+	// Producer side: next write position. Consumer side: next read position.
+	private long tail;
+	private long head;
+
+	private SharedMemoryRing(Path file, FileChannel channel, MappedByteBuffer buffer, int capacity) {
+		this.file = file;
+		this.channel = channel;
+		this.buffer = buffer;
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		this.tail = (long) LONG.getAcquire(buffer, TAIL_OFFSET);
+		this.head = (long) LONG.getAcquire(buffer, HEAD_OFFSET);
+	}
+
+	/**
+	 * Maps the ring file, creating and sizing it if needed. Both processes must use the same capacity.
+	 *
+	 * @param capacity size of the data region, a power of two
+	 */
+	public static SharedMemoryRing open(Path file, int capacity) throws IOException {
+		if (capacity < 64 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("Ring capacity must be a power of two of at least 64 bytes");
+		}
+
+		Files.createDirectories(file.toAbsolutePath().getParent());
+
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		try {
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + capacity);
+			buffer.order(ByteOrder.nativeOrder());
+
+			// Both sides may initialize a fresh file at the same time, they write the same values.
+			if ((int) INT.getAcquire(buffer, MAGIC_OFFSET) != MAGIC) {
+				INT.setRelease(buffer, CAPACITY_OFFSET, capacity);
+				INT.setRelease(buffer, MAGIC_OFFSET, MAGIC);
+			} else if ((int) INT.getAcquire(buffer, CAPACITY_OFFSET) != capacity) {
+				throw new IOException("Ring " + file + " was created with capacity " + (int) INT.getAcquire(buffer, CAPACITY_OFFSET) + ", expected " + capacity);
+			}
+
+			return new SharedMemoryRing(file, channel, buffer, capacity);
+		} catch (IOException | RuntimeException e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Appends a record. Producer only.
+	 *
+	 * @return false if the ring has no room for it right now
+	 */
+	public boolean offer(byte[] bytes) {
+		int record = align(4 + bytes.length);
+
+		if (record > capacity) {
+			throw new IllegalArgumentException("Record of " + bytes.length + " bytes does not fit a ring of " + capacity);
+		}
+
+		long head = (long) LONG.getAcquire(buffer, HEAD_OFFSET);
+		if (tail + record - head > capacity) {
+			return false;
+		}
+
+		int index = (int) (tail & mask);
+
+		// Records are 8 byte aligned, so the length never straddles the end of the region.
+		buffer.putInt(DATA_OFFSET + index, bytes.length);
+		copyIn((index + 4) & mask, bytes);
+
+		tail += record;
+		LONG.setRelease(buffer, TAIL_OFFSET, tail);
+		return true;
+	}
+
+	/**
+	 * Whether the consumer has taken every record offered so far. Producer only.
+	 */
+	public boolean isDrained() {
+		return (long) LONG.getAcquire(buffer, HEAD_OFFSET) == tail;
+	}
+
+	/**
+	 * Takes the next record. Consumer only.
+	 *
+	 * @return the record, or null if the ring is empty
+	 * @throws IllegalStateException if the record's length doesn't fit what the producer published, the ring is corrupt; {@link #skipPending()} resynchronizes
+	 */
+	public byte[] poll() {
+		long tail = (long) LONG.getAcquire(buffer, TAIL_OFFSET);
+		if (head == tail) {
+			return null;
+		}
+
+		int index = (int) (head & mask);
+		int length = buffer.getInt(DATA_OFFSET + index);
+
+		// The file is shared with another process, never trust the length.
+		if (length < 0 || length > capacity - 4 || align(4 + length) > tail - head) {
+			throw new IllegalStateException("Corrupt record of length " + length + " in ring " + file + " (" + (tail - head) + " bytes published)");
+		}
+
+		byte[] bytes = new byte[length];
+		copyOut((index + 4) & mask, bytes);
+
+		head += align(4 + length);
+		LONG.setRelease(buffer, HEAD_OFFSET, head);
+		return bytes;
+	}
+
+	/**
+	 * Drops records written before this consumer attached, e.g. by a producer from a previous run. Consumer only.
+	 */
+	public void skipPending() {
+		head = (long) LONG.getAcquire(buffer, TAIL_OFFSET);
+		LONG.setRelease(buffer, HEAD_OFFSET, head);
+	}
+
+	/**
+	 * Marks the consumer as alive. Consumer only, call it from the polling loop.
+	 */
+	public void heartbeat() {
+		LONG.setRelease(buffer, HEARTBEAT_OFFSET, System.currentTimeMillis());
+	}
+
+	/**
+	 * Publishes a value identifying the producer to the consumer, e.g. a token it also announces on its socket connection. Producer only.
+	 */
+	public void setProducerTag(long tag) {
+		LONG.setRelease(buffer, TAG_OFFSET, tag);
+	}
+
+	public long getProducerTag() {
+		return (long) LONG.getAcquire(buffer, TAG_OFFSET);
+	}
+
+	/**
+	 * Whether the consumer has polled within the given time. Lets the producer fall back to another path while the peer process is down.
+	 */
+	public boolean isConsumerAlive(long maxAgeMillis) {
+		return System.currentTimeMillis() - (long) LONG.getAcquire(buffer, HEARTBEAT_OFFSET) <= maxAgeMillis;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private void copyIn(int index, byte[] bytes) {
+		int first = Math.min(bytes.length, capacity - index);
+		buffer.put(DATA_OFFSET + index, bytes, 0, first);
+		if (first < bytes.length) {
+			buffer.put(DATA_OFFSET, bytes, first, bytes.length - first);
+		}
+	}
+
+	private void copyOut(int index, byte[] bytes) {
+		int first = Math.min(bytes.length, capacity - index);
+		buffer.get(DATA_OFFSET + index, bytes, 0, first);
+		if (first < bytes.length) {
+			buffer.get(DATA_OFFSET, bytes, first, bytes.length - first);
+		}
+	}
+
+	/**
+	 * Bytes a payload of the given length takes in the ring, with its length prefix and padding.
+	 */
+	static int recordSize(int length) {
+		return align(4 + length);
+	}
+
+	private static int align(int size) {
+		return (size + 7) & ~7;
+	}
+}
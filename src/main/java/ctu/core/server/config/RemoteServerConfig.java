@@ -1,5 +1,7 @@
 package ctu.core.server.config;
 
+import java.util.List;
+
 public class RemoteServerConfig {
 	private String host;
 	private int port;
@@ -8,6 +10,12 @@ public class RemoteServerConfig {
 	private ServerType type;
 	private Long systemRangeStart;
 	private Long systemRangeEnd;
+	private int bridgePort;
+	private List<String> cipherSuites;
+	private boolean local;
+	private String socketPath;
+	private boolean socketTls = true;
+	private boolean sharedMemory;
 
 	public RemoteServerConfig() {
 	}
@@ -76,6 +84,72 @@ public class RemoteServerConfig {
 		this.systemRangeEnd = systemRangeEnd;
 	}
 
+	/**
+	 * Trusted (plaintext, HMAC authenticated) bridge port of the remote. When set and a bridge secret is configured, bridges connect here instead of the TLS port.
+	 */
+	public int getBridgePort() {
+		return bridgePort;
+	}
+
+	public void setBridgePort(int bridgePort) {
+		this.bridgePort = bridgePort;
+	}
+
+	/**
+	 * TLS 1.3 cipher suites offered to the remote over TLS, null for the provider's defaults.
+	 */
+	public List<String> getCipherSuites() {
+		return cipherSuites;
+	}
+
+	public void setCipherSuites(List<String> cipherSuites) {
+		this.cipherSuites = cipherSuites;
+	}
+
+	/**
+	 * Whether the remote runs in this JVM and is bound with Server.bindLocal under its server ID. Bridges then connect in memory instead of over the network.
+	 */
+	public boolean isLocal() {
+		return local;
+	}
+
+	public void setLocal(boolean local) {
+		this.local = local;
+	}
+
+	/**
+	 * Unix domain socket of a remote on this host. When set, bridges dial it instead of host and port.
+	 */
+	public String getSocketPath() {
+		return socketPath;
+	}
+
+	public void setSocketPath(String socketPath) {
+		this.socketPath = socketPath;
+	}
+
+	/**
+	 * Whether the remote's Unix socket speaks TLS, true by default. Without TLS the bridge secret is used for the HMAC hello.
+	 */
+	public boolean isSocketTls() {
+		return socketTls;
+	}
+
+	public void setSocketTls(boolean socketTls) {
+		this.socketTls = socketTls;
+	}
+
+	/**
+	 * Experimental: exchange bridge packets with this remote through shared memory ring files, see ServerBridge.setSharedMemory. Only for remotes on the same host.
+	 */
+	public boolean isSharedMemory() {
+		return sharedMemory;
+	}
+
+	public void setSharedMemory(boolean sharedMemory) {
+		this.sharedMemory = sharedMemory;
+	}
+
 	public boolean ownsSystem(long systemId) {
 		if (systemRangeStart == null || systemRangeEnd == null) {
 			return false;
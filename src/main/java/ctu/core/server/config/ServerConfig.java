@@ -15,6 +15,9 @@ public class ServerConfig {
 	private Map<String, RemoteServerConfig> servers = new HashMap<>();
 	private String transferTokenSecret;
 	private int transferTokenExpirySeconds = 30;
+	private String bridgeSecret;
+	private String bridgeHost = "127.0.0.1";
+	private int bridgePort = 0;
 	private int debugPort = 0;
 	private String databaseUrl;
 	private String databaseUsername;
@@ -148,6 +151,39 @@ public class ServerConfig {
 		this.transferTokenExpirySeconds = transferTokenExpirySeconds;
 	}
 
+	/**
+	 * Secret for the HMAC hello on trusted (plaintext) bridge links, in both directions.
+	 */
+	public String getBridgeSecret() {
+		return bridgeSecret;
+	}
+
+	public void setBridgeSecret(String bridgeSecret) {
+		this.bridgeSecret = bridgeSecret;
+	}
+
+	/**
+	 * Local address the trusted bridge port binds to, loopback by default. Bridge traffic on it is plaintext, only widen it to a private interface that untrusted hosts can't reach.
+	 */
+	public String getBridgeHost() {
+		return bridgeHost;
+	}
+
+	public void setBridgeHost(String bridgeHost) {
+		this.bridgeHost = bridgeHost;
+	}
+
+	/**
+	 * Port this server accepts trusted bridge links on, 0 when it only accepts TLS.
+	 */
+	public int getBridgePort() {
+		return bridgePort;
+	}
+
+	public void setBridgePort(int bridgePort) {
+		this.bridgePort = bridgePort;
+	}
+
 	public boolean ownsSystem(long systemId) {
 		if (systemRangeStart == null || systemRangeEnd == null) {
 			return false;
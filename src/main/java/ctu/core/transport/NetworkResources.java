@@ -0,0 +1,118 @@
+package ctu.core.transport;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.netty.channel.EventLoopGroup;
+
+/**
+ * Event loops and a timer that several Servers, Clients and bridge connections in one JVM can share, so their thread
+ * count follows the number of cores instead of the number of endpoints.
+ *
+ * Hand the same instance to every endpoint with setNetworkResources(...). Endpoints never shut down groups they were
+ * given, call {@link #shutdown()} once when the last of them is done. {@link #shared()} returns a process-wide instance
+ * sized to the machine.
+ *
+ * @author Fentus
+ */
+public class NetworkResources {
+	private static NetworkResources shared;
+
+	private final Transport transport;
+	private final int bossThreads;
+	private final int workerThreads;
+	private final ScheduledThreadPoolExecutor scheduler;
+
+	private EventLoopGroup bossGroup;
+	private EventLoopGroup workerGroup;
+
+	/**
+	 * @param transport        socket transport of every group created here
+	 * @param bossThreads      acceptor threads, the upper bound for a Server's SO_REUSEPORT acceptor count
+	 * @param workerThreads    event loop threads shared by all connections, 0 for Netty's default (2 * cores)
+	 * @param schedulerThreads threads of the timer used for pings and reconnects
+	 */
+	public NetworkResources(Transport transport, int bossThreads, int workerThreads, int schedulerThreads) {
+		this.transport = transport;
+		this.bossThreads = Math.max(1, bossThreads);
+		this.workerThreads = Math.max(0, workerThreads);
+
+		AtomicInteger count = new AtomicInteger();
+		this.scheduler = new ScheduledThreadPoolExecutor(Math.max(1, schedulerThreads), runnable -> {
+			Thread thread = new Thread(runnable, "ctu-timer-" + count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		});
+		// Cancelled pings and reconnects are dropped right away instead of waiting for their delay.
+		this.scheduler.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * The process-wide instance: the {@link Transport#auto()} transport, one acceptor, one event loop per core and a two thread timer. Created on first use.
+	 */
+	public static synchronized NetworkResources shared() {
+		if (shared == null) {
+			shared = new NetworkResources(Transport.auto(), 1, Runtime.getRuntime().availableProcessors(), 2);
+		}
+		return shared;
+	}
+
+	public Transport getTransport() {
+		return transport;
+	}
+
+	public int getBossThreads() {
+		return bossThreads;
+	}
+
+	public synchronized EventLoopGroup getBossGroup() {
+		if (bossGroup == null) {
+			bossGroup = transport.newEventLoopGroup(bossThreads);
+		}
+		return bossGroup;
+	}
+
+	public synchronized EventLoopGroup getWorkerGroup() {
+		if (workerGroup == null) {
+			workerGroup = transport.newEventLoopGroup(workerThreads);
+		}
+		return workerGroup;
+	}
+
+	public ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	/**
+	 * Stops the event loops and the timer. Only call this once no endpoint uses the resources anymore.
+	 */
+	public void shutdown() {
+		synchronized (NetworkResources.class) {
+			if (shared == this) {
+				shared = null;
+			}
+		}
+
+		synchronized (this) {
+			if (workerGroup != null) {
+				workerGroup.shutdownGracefully();
+			}
+			if (bossGroup != null) {
+				bossGroup.shutdownGracefully();
+			}
+		}
+
+		scheduler.shutdown();
+
+		try {
+			if (!scheduler.awaitTermination(3, TimeUnit.SECONDS)) {
+				scheduler.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			scheduler.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
+	}
+}
@@ -0,0 +1,136 @@
+package ctu.core.transport;
+
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollDatagramChannel;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioDatagramChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+
+/**
+ * The socket transports Server and Client can run on.
+ *
+ * NIO works everywhere. EPOLL uses Netty's native Linux transport (shipped with netty-all). IO_URING uses the Netty
+ * incubator io_uring transport, which is not a dependency of this project: add
+ * netty-incubator-transport-native-io_uring to the classpath to enable it. {@link #auto()} picks the best transport
+ * that is available at runtime.
+ *
+ * @author Fentus
+ */
+public enum Transport {
+	NIO, EPOLL, IO_URING;
+
+	private static final String IO_URING_PACKAGE = "io.netty.incubator.channel.uring.";
+
+	/**
+	 * Returns EPOLL when the native Linux transport loads, NIO otherwise. io_uring is never picked automatically since it depends on the kernel version and an optional jar, select it explicitly or with -Dctu.transport=IO_URING.
+	 */
+	public static Transport auto() {
+		String forced = System.getProperty("ctu.transport");
+
+		if (forced != null) {
+			try {
+				Transport transport = valueOf(forced.trim().toUpperCase());
+
+				if (transport.isAvailable()) {
+					return transport;
+				}
+			} catch (IllegalArgumentException e) {
+				// Fall through to detection.
+			}
+		}
+
+		return EPOLL.isAvailable() ? EPOLL : NIO;
+	}
+
+	public boolean isAvailable() {
+		switch (this) {
+		case EPOLL:
+			try {
+				return Epoll.isAvailable();
+			} catch (Throwable t) {
+				return false;
+			}
+		case IO_URING:
+			try {
+				return (Boolean) Class.forName(IO_URING_PACKAGE + "IOUring").getMethod("isAvailable").invoke(null);
+			} catch (Throwable t) {
+				return false;
+			}
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * @param threads event loop threads, 0 for Netty's default (2 * cores)
+	 */
+	public EventLoopGroup newEventLoopGroup(int threads) {
+		switch (this) {
+		case EPOLL:
+			return new EpollEventLoopGroup(threads);
+		case IO_URING:
+			try {
+				return (EventLoopGroup) Class.forName(IO_URING_PACKAGE + "IOUringEventLoopGroup").getConstructor(int.class).newInstance(threads);
+			} catch (ReflectiveOperationException e) {
+				throw new IllegalStateException("io_uring transport is not on the classpath", e);
+			}
+		default:
+			return new NioEventLoopGroup(threads);
+		}
+	}
+
+	public Class<? extends ServerChannel> serverChannelClass() {
+		switch (this) {
+		case EPOLL:
+			return EpollServerSocketChannel.class;
+		case IO_URING:
+			return loadChannelClass("IOUringServerSocketChannel", ServerChannel.class);
+		default:
+			return NioServerSocketChannel.class;
+		}
+	}
+
+	public Class<? extends Channel> channelClass() {
+		switch (this) {
+		case EPOLL:
+			return EpollSocketChannel.class;
+		case IO_URING:
+			return loadChannelClass("IOUringSocketChannel", Channel.class);
+		default:
+			return NioSocketChannel.class;
+		}
+	}
+
+	public Class<? extends Channel> datagramChannelClass() {
+		switch (this) {
+		case EPOLL:
+			return EpollDatagramChannel.class;
+		case IO_URING:
+			return loadChannelClass("IOUringDatagramChannel", Channel.class);
+		default:
+			return NioDatagramChannel.class;
+		}
+	}
+
+	/**
+	 * SO_REUSEPORT with several bound acceptors is only supported on the epoll transport.
+	 */
+	public boolean supportsReusePort() {
+		return this == EPOLL;
+	}
+
+	private static <C> Class<? extends C> loadChannelClass(String name, Class<C> type) {
+		try {
+			return Class.forName(IO_URING_PACKAGE + name).asSubclass(type);
+		} catch (ClassNotFoundException e) {
+			throw new IllegalStateException("io_uring transport is not on the classpath", e);
+		}
+	}
+}
@@ -101,6 +101,11 @@ public class ServerLauncher {
 			}
 		}, "MainListener");
 
+		// Accept plaintext bridge links from trusted servers when configured
+		if (config.getBridgePort() > 0 && config.getBridgeSecret() != null) {
+			server.enableTrustedLinks(config.getBridgeHost(), config.getBridgePort(), config.getBridgeSecret());
+		}
+
 		// Start the server
 		server.start();
 
@@ -0,0 +1,85 @@
+package ctu.core.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class ConnectionSetTest {
+	private static long id(int generation, int slot) {
+		return (long) generation << 32 | slot;
+	}
+
+	private static ServerConnectionHandler<Object> handler() {
+		return new ServerConnectionHandler<>(null, new Object());
+	}
+
+	@Test
+	void lookupsSurviveRemovesAcrossProbeRuns() {
+		ConnectionSet<Object> set = new ConnectionSet<>();
+		Map<Long, ServerConnectionHandler<Object>> expected = new HashMap<>();
+
+		// Far more slots than the initial index, so entries collide and the index grows.
+		for (int slot = 0; slot < 500; slot++) {
+			ServerConnectionHandler<Object> handler = handler();
+			set.put(id(1, slot * 7), handler);
+			expected.put(id(1, slot * 7), handler);
+		}
+
+		for (int slot = 0; slot < 500; slot += 3) {
+			assertSame(expected.remove(id(1, slot * 7)), set.remove(id(1, slot * 7)));
+		}
+
+		assertEquals(expected.size(), set.size());
+		assertEquals(expected.size(), set.snapshot().length);
+		for (int slot = 0; slot < 500; slot++) {
+			assertSame(expected.get(id(1, slot * 7)), set.get(id(1, slot * 7)));
+		}
+	}
+
+	@Test
+	void reinsertAfterRemoveIsFound() {
+		ConnectionSet<Object> set = new ConnectionSet<>();
+		ServerConnectionHandler<Object> first = handler();
+		ServerConnectionHandler<Object> second = handler();
+
+		set.put(id(1, 5), first);
+		set.remove(id(1, 5));
+		set.put(id(1, 5), second);
+
+		assertSame(second, set.get(id(1, 5)));
+		assertEquals(1, set.size());
+	}
+
+	@Test
+	void staleGenerationIsIgnored() {
+		ConnectionSet<Object> set = new ConnectionSet<>();
+		ServerConnectionHandler<Object> handler = handler();
+		set.put(id(2, 9), handler);
+
+		// Same slot, older generation: a retired connection must not reach the new one.
+		assertNull(set.get(id(1, 9)));
+		assertFalse(set.contains(id(1, 9)));
+		assertNull(set.remove(id(1, 9)));
+		assertTrue(set.contains(id(2, 9)));
+	}
+
+	@Test
+	void snapshotFollowsVersion() {
+		ConnectionSet<Object> set = new ConnectionSet<>();
+		set.put(id(1, 1), handler());
+
+		ServerConnectionHandler<Object>[] before = set.snapshot();
+		assertSame(before, set.snapshot());
+
+		set.put(id(1, 2), handler());
+		assertEquals(2, set.snapshot().length);
+		assertEquals(1, before.length);
+	}
+}
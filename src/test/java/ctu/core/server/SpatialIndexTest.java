@@ -0,0 +1,104 @@
+package ctu.core.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class SpatialIndexTest {
+	/** Mask of the table's initial 16 buckets */
+	private static final int MASK = 15;
+
+	/**
+	 * Keys whose home bucket in a fresh table is the given one, so they share one probe run.
+	 */
+	private static List<Long> collidingKeys(int bucket, int count) {
+		List<Long> keys = new ArrayList<>();
+		for (long key = 1; keys.size() < count; key++) {
+			if (SpatialIndex.CellTable.index(key, MASK) == bucket) {
+				keys.add(key);
+			}
+		}
+		return keys;
+	}
+
+	@Test
+	void removeKeepsCollidingKeysReachable() {
+		SpatialIndex.CellTable<Object> table = new SpatialIndex.CellTable<>();
+		List<Long> keys = collidingKeys(3, 5);
+		Map<Long, SpatialIndex.Cell<Object>> cells = new HashMap<>();
+
+		for (long key : keys) {
+			SpatialIndex.Cell<Object> cell = new SpatialIndex.Cell<>();
+			table.put(key, cell);
+			cells.put(key, cell);
+		}
+
+		// Remove from the head, the middle and the end of the probe run.
+		for (int i : new int[] { 0, 2, 4 }) {
+			table.remove(keys.get(i));
+			assertNull(table.get(keys.get(i)));
+		}
+
+		assertEquals(2, table.size());
+		assertSame(cells.get(keys.get(1)), table.get(keys.get(1)));
+		assertSame(cells.get(keys.get(3)), table.get(keys.get(3)));
+	}
+
+	@Test
+	void reinsertAfterRemoveIsStoredOnce() {
+		SpatialIndex.CellTable<Object> table = new SpatialIndex.CellTable<>();
+		List<Long> keys = collidingKeys(7, 3);
+		SpatialIndex.Cell<Object> first = new SpatialIndex.Cell<>();
+		SpatialIndex.Cell<Object> second = new SpatialIndex.Cell<>();
+
+		for (long key : keys) {
+			table.put(key, first);
+		}
+
+		table.remove(keys.get(0));
+		table.put(keys.get(0), second);
+
+		// Re-inserted once, not next to a stale copy further down the run.
+		assertEquals(3, table.size());
+		assertSame(second, table.get(keys.get(0)));
+
+		table.remove(keys.get(0));
+		assertNull(table.get(keys.get(0)));
+		assertSame(first, table.get(keys.get(1)));
+		assertSame(first, table.get(keys.get(2)));
+	}
+
+	@Test
+	void lookupsMatchMapThroughGrowthAndRemoves() {
+		SpatialIndex.CellTable<Object> table = new SpatialIndex.CellTable<>();
+		Map<Long, SpatialIndex.Cell<Object>> expected = new HashMap<>();
+		Random random = new Random(42);
+
+		for (int i = 0; i < 10_000; i++) {
+			// Few distinct keys, so removes and re-inserts keep hitting the same runs.
+			long key = random.nextInt(300);
+
+			if (random.nextInt(3) == 0) {
+				table.remove(key);
+				expected.remove(key);
+			} else {
+				SpatialIndex.Cell<Object> cell = new SpatialIndex.Cell<>();
+				table.put(key, cell);
+				expected.put(key, cell);
+			}
+		}
+
+		assertEquals(expected.size(), table.size());
+		for (long key = 0; key < 300; key++) {
+			assertSame(expected.get(key), table.get(key));
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package ctu.core.server;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+import org.junit.jupiter.api.Test;
+
+class TagQueryTest {
+	/** Tags "t0".."t63" resolve to their number, anything else is unknown. */
+	private static final ToIntFunction<String> BITS = name -> name.startsWith("t") ? Integer.parseInt(name.substring(1)) : -1;
+
+	private static final long A = 1L << 0;
+	private static final long B = 1L << 1;
+	private static final long C = 1L << 2;
+
+	private static boolean matches(long[] clauses, long bits) {
+		for (int i = 0; i < clauses.length; i += 2) {
+			if ((bits & clauses[i]) == clauses[i] && (bits & clauses[i + 1]) == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Compares the compiled masks against the expression evaluated directly, for every combination of t0, t1 and t2.
+	 */
+	private static void assertEquivalent(TagQuery query, Predicate<Long> expected) {
+		long[] clauses = query.compile(BITS);
+
+		for (long bits = 0; bits < 8; bits++) {
+			assertEquals(expected.test(bits), matches(clauses, bits), "bits " + Long.toBinaryString(bits));
+		}
+	}
+
+	@Test
+	void tagRequiresItsBit() {
+		assertArrayEquals(new long[] { B, 0 }, TagQuery.tag("t1").compile(BITS));
+	}
+
+	@Test
+	void notOverOrForbidsEveryTag() {
+		// De Morgan: !(a | b) == !a & !b, a single pair forbidding both.
+		TagQuery query = TagQuery.not(TagQuery.any("t0", "t1"));
+
+		assertArrayEquals(new long[] { 0, A | B }, query.compile(BITS));
+		assertEquivalent(query, bits -> (bits & (A | B)) == 0);
+	}
+
+	@Test
+	void notOverAndAllowsEitherMissing() {
+		TagQuery query = TagQuery.not(TagQuery.all("t0", "t1"));
+
+		assertEquals(4, query.compile(BITS).length);
+		assertEquivalent(query, bits -> (bits & (A | B)) != (A | B));
+	}
+
+	@Test
+	void doubleNegationRestoresQuery() {
+		assertEquivalent(TagQuery.not(TagQuery.not(TagQuery.any("t0", "t1"))), bits -> (bits & (A | B)) != 0);
+	}
+
+	@Test
+	void nestedQueryMatchesDirectEvaluation() {
+		// (a & !b) | !(b | c)
+		TagQuery query = TagQuery.or(TagQuery.and(TagQuery.tag("t0"), TagQuery.not(TagQuery.tag("t1"))), TagQuery.not(TagQuery.any("t1", "t2")));
+
+		assertEquivalent(query, bits -> ((bits & A) != 0 && (bits & B) == 0) || (bits & (B | C)) == 0);
+	}
+
+	@Test
+	void contradictionsAreDropped() {
+		assertEquals(0, TagQuery.and(TagQuery.tag("t0"), TagQuery.not(TagQuery.tag("t0"))).compile(BITS).length);
+
+		// Only the pairs that don't require and forbid the same bit survive.
+		TagQuery query = TagQuery.and(TagQuery.any("t0", "t1"), TagQuery.not(TagQuery.tag("t0")));
+		assertArrayEquals(new long[] { B, A }, query.compile(BITS));
+	}
+
+	@Test
+	void duplicatePairsAreMerged() {
+		assertArrayEquals(new long[] { A, 0 }, TagQuery.any("t0", "t0").compile(BITS));
+	}
+
+	@Test
+	void unknownTagNeverMatches() {
+		assertEquals(0, TagQuery.tag("missing").compile(BITS).length);
+		assertEquals(0, TagQuery.all("t0", "missing").compile(BITS).length);
+		assertArrayEquals(new long[] { A, 0 }, TagQuery.any("t0", "missing").compile(BITS));
+		assertArrayEquals(new long[] { 0, 0 }, TagQuery.not(TagQuery.tag("missing")).compile(BITS));
+	}
+
+	@Test
+	void tooManyClausesAreRejected() {
+		// Each OR of two distinct tags doubles the pairs: 2^10 fits, 2^11 does not.
+		TagQuery[] fits = new TagQuery[10];
+		TagQuery[] overflows = new TagQuery[11];
+		for (int i = 0; i < overflows.length; i++) {
+			overflows[i] = TagQuery.any("t" + (2 * i), "t" + (2 * i + 1));
+			if (i < fits.length) {
+				fits[i] = overflows[i];
+			}
+		}
+
+		assertEquals(2 * TagQuery.MAX_CLAUSES, TagQuery.and(fits).compile(BITS).length);
+		assertThrows(IllegalArgumentException.class, () -> TagQuery.and(overflows).compile(BITS));
+	}
+
+	@Test
+	void requiredTagsOnlyComeFromConjunctions() {
+		assertEquals(2, TagQuery.and(TagQuery.tag("t0"), TagQuery.any("t1", "t2"), TagQuery.tag("t3")).requiredTags().size());
+		assertEquals(0, TagQuery.not(TagQuery.tag("t0")).requiredTags().size());
+	}
+}
@@ -0,0 +1,98 @@
+package ctu.core.server.bridge;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class SharedMemoryRingTest {
+	private static final int CAPACITY = 64;
+
+	@TempDir
+	Path directory;
+
+	private static byte[] payload(int length, int seed) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (seed + i);
+		}
+		return bytes;
+	}
+
+	@Test
+	void recordWrapsAroundTheEnd() throws IOException {
+		Path file = directory.resolve("wrap.ring");
+
+		try (SharedMemoryRing producer = SharedMemoryRing.open(file, CAPACITY); SharedMemoryRing consumer = SharedMemoryRing.open(file, CAPACITY)) {
+			// A 48 byte record, then one whose payload starts 52 bytes in and runs past the end.
+			byte[] first = payload(40, 1);
+			byte[] second = payload(24, 100);
+
+			assertTrue(producer.offer(first));
+			assertArrayEquals(first, consumer.poll());
+
+			assertTrue(producer.offer(second));
+			assertArrayEquals(second, consumer.poll());
+			assertNull(consumer.poll());
+			assertTrue(producer.isDrained());
+		}
+	}
+
+	@Test
+	void fullRingRefusesUntilPolled() throws IOException {
+		Path file = directory.resolve("full.ring");
+
+		try (SharedMemoryRing producer = SharedMemoryRing.open(file, CAPACITY); SharedMemoryRing consumer = SharedMemoryRing.open(file, CAPACITY)) {
+			// Two records of 32 bytes fill the ring exactly.
+			byte[] record = payload(CAPACITY / 2 - 4, 7);
+
+			assertTrue(producer.offer(record));
+			assertTrue(producer.offer(record));
+			assertFalse(producer.offer(new byte[0]));
+			assertFalse(producer.isDrained());
+
+			assertArrayEquals(record, consumer.poll());
+			assertTrue(producer.offer(record));
+
+			assertArrayEquals(record, consumer.poll());
+			assertArrayEquals(record, consumer.poll());
+			assertNull(consumer.poll());
+		}
+	}
+
+	@Test
+	void corruptLengthIsReportedAndSkipped() throws IOException {
+		Path file = directory.resolve("corrupt.ring");
+
+		try (SharedMemoryRing producer = SharedMemoryRing.open(file, CAPACITY); SharedMemoryRing consumer = SharedMemoryRing.open(file, CAPACITY)) {
+			assertTrue(producer.offer(payload(8, 3)));
+
+			// Overwrite the record's length with more than was published.
+			try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+				ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putInt(0, 1000);
+				channel.write(length, SharedMemoryRing.DATA_OFFSET);
+			}
+
+			assertThrows(IllegalStateException.class, consumer::poll);
+
+			consumer.skipPending();
+			assertNull(consumer.poll());
+			assertTrue(producer.isDrained());
+
+			byte[] next = payload(12, 50);
+			assertTrue(producer.offer(next));
+			assertArrayEquals(next, consumer.poll());
+		}
+	}
+}